@@ -1,11 +1,13 @@
 plugins {
     kotlin("jvm")
     id("java-library")
+    id("me.champeau.jmh")
 }
 
 dependencies {
     implementation(project(":core"))
     implementation(project(":example:csv"))  // Add CSV adapter dependency
+    implementation(project(":steiner"))  // Join path inference
     implementation("org.apache.calcite.avatica:avatica-core")
     implementation("org.apache.calcite.avatica:avatica-server")
     
@@ -15,6 +17,9 @@ dependencies {
     
     // Add SLF4J implementation
     testRuntimeOnly("org.slf4j:slf4j-simple:1.7.30")
+
+    jmhImplementation("org.openjdk.jmh:jmh-core")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess")
 }
 
 tasks.test {
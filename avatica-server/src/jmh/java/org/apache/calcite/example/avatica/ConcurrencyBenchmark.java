@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of short queries and metadata calls against the Avatica server
+ * while other clients run long scans, for each execution mode. Sample-time
+ * mode reports percentiles per method; the figure to compare across modes
+ * is p0.99 of {@code shortQuery} and {@code metadata}.
+ *
+ * <p>POOLED mode only isolates metadata from statements: {@code metadata}
+ * should stay near its unloaded value, but {@code shortQuery} shares the
+ * statement pool with {@code longScan} and queues behind the scans once
+ * they occupy every statement thread. VIRTUAL mode gives each request a
+ * thread, so short queries only compete with scans for cores.
+ *
+ * <p>The long scan is a cross join of EMPS with itself, {@code scanWidth}
+ * times, so that it is CPU-bound in the server.
+ *
+ * <p>VIRTUAL mode needs Java 21 or later; on an older JDK its trial fails in
+ * setup with a message saying so, and the other modes still run. To leave it
+ * out, pass {@code -p mode=JETTY,POOLED}.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ConcurrencyBenchmark {
+    /** One server for all the threads of a trial. */
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"JETTY", "VIRTUAL", "POOLED"})
+        ExecutionHandler.Mode mode;
+
+        @Param({"8"})
+        int scanWidth;
+
+        SimpleCalciteAvaticaServer server;
+        String longScan;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            if (mode == ExecutionHandler.Mode.VIRTUAL && !virtualThreadsAvailable()) {
+                throw new IllegalStateException("Skipping mode=VIRTUAL: virtual threads need Java 21 or later, and this is "
+                    + "Java " + System.getProperty("java.version") + "; run with -p mode=JETTY,POOLED to leave it out");
+            }
+            server = new SimpleCalciteAvaticaServer(mode);
+            server.start();
+            StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM EMPS e0");
+            for (int i = 1; i < scanWidth; i++) {
+                sql.append(", EMPS e").append(i);
+            }
+            longScan = sql.append(" WHERE e0.EMPNO + e").append(scanWidth - 1).append(".EMPNO > 0").toString();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            if (server != null) {
+                server.stop();
+            }
+        }
+
+        private static boolean virtualThreadsAvailable() {
+            try {
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    }
+
+    /** A connection per client thread, as each editor session has its own. */
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        Statement statement;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws SQLException {
+            connection = DriverManager.getConnection(server.server.getJdbcUrl());
+            statement = connection.createStatement();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            statement.close();
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(8)
+    public int shortQuery(Client client) throws SQLException {
+        return count(client.statement.executeQuery("SELECT NAME FROM DEPTS WHERE DEPTNO = 10"));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(4)
+    public int metadata(Client client) throws SQLException {
+        return count(client.connection.getMetaData().getTables(null, "SALES", "%", null));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(16)
+    public int longScan(Server server, Client client) throws SQLException {
+        return count(client.statement.executeQuery(server.longScan));
+    }
+
+    private static int count(ResultSet rs) throws SQLException {
+        try (ResultSet r = rs) {
+            int n = 0;
+            while (r.next()) {
+                n++;
+            }
+            return n;
+        }
+    }
+}
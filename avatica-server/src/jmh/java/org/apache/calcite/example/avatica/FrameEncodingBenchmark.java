@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.avatica.proto.Common;
+import org.apache.calcite.avatica.proto.Responses;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes on the wire and CPU of the frame encodings, on a fetch response
+ * shaped like EMPS: an increasing id, a name from a few hundred, a
+ * department from a handful, a nullable city, a boolean and a double.
+ * {@code decode} is the client's work before the driver has a protobuf
+ * response to parse (nothing for plain protobuf) plus that parse;
+ * {@code encode} is the server's work after Avatica has serialised the
+ * response. The {@code wireBytes} counter is the size of the response sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameEncodingBenchmark {
+    @Param({"1000", "100000"})
+    int rows;
+
+    @Param({"PROTOBUF", "COLUMNAR"})
+    FrameEncoding.Frames frames;
+
+    @Param({"NONE", "GZIP"})
+    FrameEncoding.Compression compression;
+
+    private byte[] protobuf;
+    private byte[] wire;
+
+    /** Size of the response on the wire, per operation. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long wireBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        protobuf = response(rows, 42);
+        wire = encode(protobuf);
+    }
+
+    private byte[] encode(byte[] response) throws IOException {
+        byte[] bytes = response;
+        if (frames == FrameEncoding.Frames.COLUMNAR) {
+            bytes = FrameEncoding.encode(bytes);
+        }
+        if (compression == FrameEncoding.Compression.GZIP) {
+            bytes = FrameEncoding.gzip(bytes);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] encode(Wire counters) throws IOException {
+        byte[] bytes = encode(protobuf);
+        counters.wireBytes += bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    public Responses.FetchResponse decode() throws IOException {
+        byte[] bytes = wire;
+        if (compression == FrameEncoding.Compression.GZIP) {
+            bytes = FrameEncoding.gunzip(bytes);
+        }
+        if (frames == FrameEncoding.Frames.COLUMNAR) {
+            bytes = FrameEncoding.decode(bytes);
+        }
+        return Responses.FetchResponse.parseFrom(Common.WireMessage.parseFrom(bytes).getWrappedMessage());
+    }
+
+    static byte[] response(int rows, long seed) {
+        Random random = new Random(seed);
+        String[] cities = {"San Francisco", "Vancouver", "Seattle", "Berlin", "Tokyo"};
+        Common.Frame.Builder frame = Common.Frame.newBuilder().setOffset(0).setDone(false);
+        for (int r = 0; r < rows; r++) {
+            Common.Row.Builder row = Common.Row.newBuilder();
+            row.addValue(scalar(Common.TypedValue.newBuilder().setType(Common.Rep.INTEGER).setNumberValue(100 + r)));
+            row.addValue(scalar(Common.TypedValue.newBuilder().setType(Common.Rep.STRING)
+                .setStringValue("Name" + random.nextInt(300))));
+            row.addValue(scalar(Common.TypedValue.newBuilder().setType(Common.Rep.INTEGER)
+                .setNumberValue(10 * (1 + random.nextInt(5)))));
+            row.addValue(scalar(random.nextInt(4) == 0
+                ? Common.TypedValue.newBuilder().setType(Common.Rep.NULL).setNull(true)
+                : Common.TypedValue.newBuilder().setType(Common.Rep.STRING)
+                    .setStringValue(cities[random.nextInt(cities.length)])));
+            row.addValue(scalar(Common.TypedValue.newBuilder().setType(Common.Rep.BOOLEAN)
+                .setBoolValue(random.nextBoolean())));
+            row.addValue(scalar(Common.TypedValue.newBuilder().setType(Common.Rep.DOUBLE)
+                .setDoubleValue(random.nextInt(100000) / 100.0)));
+            frame.addRows(row);
+        }
+        Responses.FetchResponse response = Responses.FetchResponse.newBuilder().setFrame(frame).build();
+        return Common.WireMessage.newBuilder().setName(Responses.FetchResponse.class.getName())
+            .setWrappedMessage(response.toByteString()).build().toByteArray();
+    }
+
+    private static Common.ColumnValue scalar(Common.TypedValue.Builder value) {
+        return Common.ColumnValue.newBuilder().setScalarValue(value).build();
+    }
+}
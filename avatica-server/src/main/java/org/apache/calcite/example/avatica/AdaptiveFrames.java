@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sizes the result frames of each open cursor in bytes rather than rows.
+ * A frame's row count is its byte budget divided by the cursor's row width,
+ * measured from the frames already sent. The budget grows with
+ * the round trip the client takes between frames, so that the round trip
+ * stays a small part of each fetch:
+ * {@code throughput * latency * LATENCY_FACTOR}, where throughput is how fast
+ * the server gets a frame onto the wire; it is never less than
+ * {@link #setMinFrameBytes min} nor more than the per-cursor cap
+ * {@link #setMaxCursorBytes max}. The client's fetch size is not a limit, as
+ * Avatica clients take frames of any size.
+ *
+ * <p>With {@link #setStreaming streaming} a fetched frame reads its rows
+ * from the cursor while it is serialised, {@value #STREAM_BATCH_ROWS} at a
+ * time, instead of holding all of them before; a cursor then holds one
+ * batch of rows. The protobuf response is still written whole, since its
+ * envelope is prefixed with the length of the message.
+ *
+ * <p>All sizes here, the cap included, are bytes of the protobuf response,
+ * before any columnar encoding or gzip (see {@link FrameEncoding}): a
+ * frame's rows times the row width measured from earlier frames. So a
+ * client that asks for an encoding gets frames of the same rows as one
+ * that does not, and the cap bounds the size of a protobuf response, not
+ * the heap a cursor's rows take while the frame
+ * is built, which for rows of boxed JDBC values is several times more. The
+ * first frame of a cursor is sized with an assumed row width of
+ * {@value #INITIAL_ROW_BYTES} bytes, so only later frames are sure to stay
+ * within the cap. The bytes each cursor holds, estimated the same way, are
+ * reported by {@link #getCursors()} and the {@code cursors.bytes} metric.
+ */
+public class AdaptiveFrames {
+    static final int DEFAULT_MIN_FRAME_BYTES = 16 << 10;
+    static final long DEFAULT_MAX_CURSOR_BYTES = 8L << 20;
+    static final int STREAM_BATCH_ROWS = 64;
+
+    // Frame budget before a cursor has a measured throughput and latency
+    private static final int INITIAL_FRAME_BYTES = 256 << 10;
+    // Row width assumed until a frame has been sent
+    private static final int INITIAL_ROW_BYTES = 256;
+    // Frames take this many round trips' worth of transfer time
+    private static final int LATENCY_FACTOR = 4;
+    // Weight of the newest measurement in the running averages
+    private static final double ALPHA = 0.3;
+
+    private static final AdaptiveFrames INSTANCE = new AdaptiveFrames();
+
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private volatile boolean adaptive = true;
+    private volatile boolean streaming;
+    private volatile int minFrameBytes = DEFAULT_MIN_FRAME_BYTES;
+    private volatile long maxCursorBytes = DEFAULT_MAX_CURSOR_BYTES;
+
+    AdaptiveFrames() {
+    }
+
+    /** The frame sizing of every server in the process. */
+    public static AdaptiveFrames get() {
+        return INSTANCE;
+    }
+
+    /** The cursor of a statement, created on its first frame. */
+    Cursor cursor(String connectionId, int statementId) {
+        return cursors.computeIfAbsent(connectionId + '/' + statementId, Cursor::new);
+    }
+
+    /** The cursor of a statement, or null if it has none. */
+    Cursor find(String connectionId, int statementId) {
+        return cursors.get(connectionId + '/' + statementId);
+    }
+
+    /** Forgets the cursor of a closed statement, or of a statement executed again. */
+    void close(String connectionId, int statementId) {
+        cursors.remove(connectionId + '/' + statementId);
+    }
+
+    /** Forgets the cursors of a closed connection. */
+    void closeConnection(String connectionId) {
+        cursors.keySet().removeIf(key -> key.startsWith(connectionId + '/'));
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public void setMinFrameBytes(int minFrameBytes) {
+        this.minFrameBytes = minFrameBytes;
+    }
+
+    /** Caps the protobuf size of a frame, and so the bytes, estimated the same way, a cursor holds. */
+    public void setMaxCursorBytes(long maxCursorBytes) {
+        this.maxCursorBytes = maxCursorBytes;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public long getMaxCursorBytes() {
+        return maxCursorBytes;
+    }
+
+    /** Open cursors, with their row width and the bytes they hold. */
+    public List<Cursor> getCursors() {
+        return new ArrayList<>(cursors.values());
+    }
+
+    /** Bytes held by all open cursors. */
+    public long getHeldBytes() {
+        long bytes = 0;
+        for (Cursor cursor : cursors.values()) {
+            bytes += cursor.heldBytes;
+        }
+        return bytes;
+    }
+
+    public int getOpenCursors() {
+        return cursors.size();
+    }
+
+    /** The state of the result set of one statement. */
+    public final class Cursor {
+        private final String key;
+        private double rowBytes = INITIAL_ROW_BYTES;
+        // Bytes per nanosecond getting frames onto the wire, and nanoseconds from a response to the next fetch
+        private double throughput;
+        private double latencyNanos;
+        private long lastSent;
+        private long frames;
+        private long rows;
+        private long bytes;
+        // Largest frame sized from a measured row width, that is after the first
+        private long maxFrameBytes;
+        private volatile long heldBytes;
+        private volatile long maxHeldBytes;
+        volatile boolean done;
+
+        Cursor(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Rows for the next frame; the client asked for {@code requested}, or
+         * any number if not positive. Called when a fetch arrives.
+         */
+        synchronized int rows(int requested, long now) {
+            if (lastSent != 0) {
+                latencyNanos = average(latencyNanos, now - lastSent);
+            }
+            long budget = adaptive ? budget() : maxCursorBytes;
+            int rows = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / Math.max(1, (long) rowBytes)));
+            if (!adaptive && requested > 0) {
+                rows = Math.min(rows, requested);
+            }
+            hold(streaming ? Math.min(rows, STREAM_BATCH_ROWS) : rows);
+            return rows;
+        }
+
+        private long budget() {
+            if (throughput == 0 || latencyNanos == 0) {
+                return Math.min(INITIAL_FRAME_BYTES, maxCursorBytes);
+            }
+            double target = throughput * latencyNanos * LATENCY_FACTOR;
+            // The cap wins over the minimum
+            return (long) Math.min(maxCursorBytes, Math.max(minFrameBytes, target));
+        }
+
+        /** Estimates the bytes held while a frame's rows are in memory, as their size in protobuf. */
+        void hold(long rows) {
+            heldBytes = (long) (rows * rowBytes);
+            if (heldBytes > maxHeldBytes) {
+                maxHeldBytes = heldBytes;
+            }
+        }
+
+        /** Records a response carrying a frame, written from {@code start} to {@code end}. */
+        synchronized void sent(long frameRows, long frameBytes, long start, long end) {
+            frames++;
+            if (frameRows > 0) {
+                rows += frameRows;
+                bytes += frameBytes;
+                if (frames > 1) {
+                    maxFrameBytes = Math.max(maxFrameBytes, frameBytes);
+                }
+                rowBytes = frames == 1 ? (double) frameBytes / frameRows
+                    : average(rowBytes, (double) frameBytes / frameRows);
+            }
+            if (end > start && frameBytes > 0) {
+                throughput = average(throughput, (double) frameBytes / (end - start));
+            }
+            lastSent = end;
+            heldBytes = 0;
+        }
+
+        private double average(double average, double value) {
+            return average == 0 ? value : average + ALPHA * (value - average);
+        }
+
+        /** Connection and statement id. */
+        public String getKey() {
+            return key;
+        }
+
+        public synchronized double getRowBytes() {
+            return rowBytes;
+        }
+
+        public synchronized long getRowsSent() {
+            return rows;
+        }
+
+        public long getHeldBytes() {
+            return heldBytes;
+        }
+
+        /** Bytes of the largest frame but the first, which should not exceed the cap. */
+        public synchronized long getMaxFrameBytes() {
+            return maxFrameBytes;
+        }
+
+        public long getMaxHeldBytes() {
+            return maxHeldBytes;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT,
+                "%s: %d frames, %d rows, %.0f bytes/row, largest frame %d bytes, holding %d bytes (max %d)",
+                key, frames, rows, rowBytes, maxFrameBytes, heldBytes, maxHeldBytes);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.schema.Table;
+import org.apache.calcite.schema.impl.AbstractSchema;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schema with one table per {@code .csv} or {@code .csv.gz} file in a
+ * directory, named after the file without its extensions as in the CSV
+ * adapter. The file list is read once per schema instance.
+ */
+public class CachedCsvSchema extends AbstractSchema {
+    private final File directory;
+    private final ColumnarCsvCache cache;
+    private final StatisticsStore statistics;
+    private Map<String, Table> tableMap;
+
+    public CachedCsvSchema(File directory, ColumnarCsvCache cache, StatisticsStore statistics) {
+        this.directory = directory;
+        this.cache = cache;
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected synchronized Map<String, Table> getTableMap() {
+        if (tableMap == null) {
+            tableMap = new HashMap<>();
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".csv") || name.endsWith(".csv.gz"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    String name = file.getName();
+                    name = name.substring(0, name.length() - (name.endsWith(".gz") ? ".csv.gz" : ".csv").length());
+                    tableMap.put(name, new CachedCsvTable(file, cache, statistics));
+                    statistics.register(name, file);
+                }
+            }
+        }
+        return tableMap;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.schema.Schema;
+import org.apache.calcite.schema.SchemaFactory;
+import org.apache.calcite.schema.SchemaPlus;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drop-in replacement for the CSV adapter's schema factory that serves the
+ * directory's tables from a shared {@link ColumnarCsvCache}. Operands:
+ * {@code directory}, and optionally {@code cacheBytes} (default 256 MB),
+ * which resizes the shared cache.
+ *
+ * <p>With {@code parallelScan: true} files are read by a {@link MappedCsvScanner}
+ * in splits of {@code splitBytes} (default 64 MB) on one thread per core.
+ * {@code transcodeGzip: true} also decompresses gzipped files once into
+ * {@code transcodeDirectory} (default {@code calcite-csv} under the system
+ * temporary directory) so they can be split too. These settings apply to the
+ * shared cache. Calcite calls the factory for every connection, so they are
+ * applied once per distinct set of operands: connections to the same model
+ * leave the cache alone, and a schema with other settings replaces them.
+ *
+ * <p>Tables analysed with {@code ANALYZE_TABLE} (see {@link StatisticsStore})
+ * feed their statistics to the planner through {@link CsvRelMetadata}.
+ */
+public class CachedCsvSchemaFactory implements SchemaFactory {
+    static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
+    private static final ColumnarCsvCache CACHE = new ColumnarCsvCache(DEFAULT_CACHE_BYTES);
+    private static final StatisticsStore STATISTICS = new StatisticsStore(CACHE);
+    private static final SchemaVersion VERSION = new SchemaVersion(STATISTICS, 1000);
+    private static List<Object> applied;  // Cache settings last configured, guarded by the class
+
+    /** The cache behind every schema this factory creates. */
+    public static ColumnarCsvCache cache() {
+        return CACHE;
+    }
+
+    /** The statistics of the tables of every schema this factory creates. */
+    public static StatisticsStore statistics() {
+        return STATISTICS;
+    }
+
+    /** Version of the tables of every schema this factory creates, for {@link PlanCache}. */
+    static long schemaVersion() {
+        return VERSION.getAsLong();
+    }
+
+    @Override
+    public Schema create(SchemaPlus parentSchema, String name, Map<String, Object> operand) {
+        File directory = new File((String) operand.get("directory"));
+        Object base = operand.get("baseDirectory");
+        if (!directory.isAbsolute() && base instanceof File) {
+            directory = new File((File) base, directory.getPath());
+        }
+        configure(operand);
+        CsvRelMetadata.install();
+        VERSION.register(directory);
+        return new CachedCsvSchema(directory, CACHE, STATISTICS);
+    }
+
+    // Applies the cache operands unless the same ones were applied last
+    private static synchronized void configure(Map<String, Object> operand) {
+        List<Object> settings = Arrays.asList(operand.get("cacheBytes"), operand.get("parallelScan"),
+            operand.get("splitBytes"), operand.get("transcodeGzip"), operand.get("transcodeDirectory"));
+        if (settings.equals(applied)) {
+            return;
+        }
+        applied = settings;
+        Object cacheBytes = operand.get("cacheBytes");
+        if (cacheBytes instanceof Number) {
+            CACHE.setMaxBytes(((Number) cacheBytes).longValue());
+        }
+        if (Boolean.TRUE.equals(operand.get("parallelScan"))) {
+            Object splitBytes = operand.get("splitBytes");
+            File transcodeDirectory = null;
+            if (Boolean.TRUE.equals(operand.get("transcodeGzip"))) {
+                Object path = operand.get("transcodeDirectory");
+                transcodeDirectory = path instanceof String ? new File((String) path)
+                    : new File(System.getProperty("java.io.tmpdir"), "calcite-csv");
+            }
+            CACHE.setScanner(new MappedCsvScanner(splitBytes instanceof Number
+                ? ((Number) splitBytes).longValue() : MappedCsvScanner.DEFAULT_SPLIT_BYTES, transcodeDirectory));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.ProjectableFilterableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Table over one CSV file, scanned from the columnar cache. Each scan takes
+ * the cached version current at the time, so a file changing mid-query does
+ * not affect rows already being returned. A file larger than the whole cache
+ * is instead streamed split by split when parallel scanning is enabled,
+ * parsing only the columns the query uses and skipping splits by their
+ * {@link ZoneMap}.
+ *
+ * <p>Comparisons of a column with a literal are evaluated by the scan on
+ * the column arrays (see {@link ColumnPredicate}); only the projected
+ * columns of matching rows are materialised.
+ *
+ * <p>Once the table has been analysed (see {@link StatisticsStore}) its row
+ * count is reported to the planner, and {@link CsvRelMetadata} estimates
+ * selectivities and distinct counts from its column statistics.
+ */
+public class CachedCsvTable extends AbstractTable implements ProjectableFilterableTable {
+    private final File file;
+    private final ColumnarCsvCache cache;
+    private final StatisticsStore statistics;
+
+    CachedCsvTable(File file, ColumnarCsvCache cache, StatisticsStore statistics) {
+        this.file = file;
+        this.cache = cache;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        // No keys: distinct counts are estimates, so uniqueness is not known
+        TableStatistics stats = statistics();
+        return stats == null ? Statistics.UNKNOWN
+            : Statistics.of(stats.estimateRowCount(file.length()), Collections.emptyList());
+    }
+
+    /** Statistics of the file, possibly of an earlier version of it, or null if it has not been analysed. */
+    TableStatistics statistics() {
+        return statistics.get(file);
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return header().rowType(typeFactory);
+    }
+
+    private ColumnarTable header() {
+        try {
+            return CsvColumnarReader.readHeader(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file, e);
+        }
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root, List<RexNode> filters, int[] projects) {
+        AtomicBoolean cancelFlag = DataContext.Variable.CANCEL_FLAG.get(root);
+        MappedCsvScanner scanner = cache.getScanner();
+        if (scanner != null && file.length() > cache.getMaxBytes()) {
+            ColumnarTable header = header();
+            List<ColumnPredicate> predicates = ColumnPredicate.pushDown(filters, header, root);
+            boolean[] columns = new boolean[header.columns.size()];
+            if (projects == null) {
+                Arrays.fill(columns, true);
+            } else {
+                for (int project : projects) {
+                    columns[project] = true;
+                }
+            }
+            for (ColumnPredicate predicate : predicates) {
+                columns[predicate.column] = true;
+            }
+            return new AbstractEnumerable<Object[]>() {
+                @Override
+                public Enumerator<Object[]> enumerator() {
+                    return new RowEnumerator(() -> {
+                        try {
+                            return scanner.stream(file, columns, predicates);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Could not read " + file, e);
+                        }
+                    }, predicates, projects, cancelFlag);
+                }
+            };
+        }
+        ColumnarTable table = cache.get(file);
+        List<ColumnPredicate> predicates = ColumnPredicate.pushDown(filters, table, root);
+        return new AbstractEnumerable<Object[]>() {
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new RowEnumerator(() -> Collections.singletonList(table).iterator(), predicates, projects,
+                    cancelFlag);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "CachedCsvTable(" + file.getName() + ")";
+    }
+
+    /**
+     * Materialises the projected columns of the rows that satisfy every
+     * predicate, from one cached table or from the splits of a streamed file.
+     * Resetting reopens the parts, which restarts a streamed scan.
+     */
+    static final class RowEnumerator implements Enumerator<Object[]> {
+        private final Supplier<Iterator<ColumnarTable>> source;
+        private Iterator<ColumnarTable> parts;
+        private final List<ColumnPredicate> predicates;
+        private final int[] projects;
+        private final AtomicBoolean cancelFlag;
+        private final IntPredicate[] matchers;
+        private ColumnarTable part;
+        private int row = -1;
+
+        RowEnumerator(Supplier<Iterator<ColumnarTable>> source, List<ColumnPredicate> predicates, int[] projects,
+                AtomicBoolean cancelFlag) {
+            this.source = source;
+            this.parts = source.get();
+            this.predicates = predicates;
+            this.projects = projects;
+            this.cancelFlag = cancelFlag;
+            this.matchers = new IntPredicate[predicates.size()];
+        }
+
+        @Override
+        public Object[] current() {
+            if (projects == null) {
+                return part.row(row);
+            }
+            Object[] values = new Object[projects.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = part.columns.get(projects[i]).get(row);
+            }
+            return values;
+        }
+
+        @Override
+        public boolean moveNext() {
+            if (cancelFlag != null && cancelFlag.get()) {
+                return false;
+            }
+            while (true) {
+                if (part == null || ++row >= part.rowCount) {
+                    if (!parts.hasNext() || (cancelFlag != null && cancelFlag.get())) {
+                        return false;
+                    }
+                    part = parts.next();
+                    for (int i = 0; i < matchers.length; i++) {
+                        matchers[i] = predicates.get(i).bind(part.columns.get(predicates.get(i).column));
+                    }
+                    row = -1;
+                    continue;
+                }
+                if (matches(row)) {
+                    return true;
+                }
+            }
+        }
+
+        private boolean matches(int row) {
+            for (IntPredicate matcher : matchers) {
+                if (!matcher.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            close();
+            parts = source.get();
+            part = null;
+            row = -1;
+        }
+
+        @Override
+        public void close() {
+            if (parts instanceof MappedCsvScanner.SplitIterator) {
+                ((MappedCsvScanner.SplitIterator) parts).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexDynamicParam;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * A comparison of one column with a literal, such as {@code DEPTNO = 10},
+ * that a CSV scan evaluates itself: against the column arrays row by row,
+ * and against a block's min/max to skip the block. As in SQL, a null value
+ * matches no comparison.
+ */
+final class ColumnPredicate {
+    enum Op {
+        EQ, NE, LT, LE, GT, GE;
+
+        /** Whether the op holds for a comparison result of -1, 0, 1 or {@link #UNORDERED}. */
+        boolean holds(int comparison) {
+            if (comparison == UNORDERED) {
+                return this == NE;
+            }
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case NE:
+                    return comparison != 0;
+                case LT:
+                    return comparison < 0;
+                case LE:
+                    return comparison <= 0;
+                case GT:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+
+        static Op of(SqlKind kind) {
+            switch (kind) {
+                case EQUALS:
+                    return EQ;
+                case NOT_EQUALS:
+                    return NE;
+                case LESS_THAN:
+                    return LT;
+                case LESS_THAN_OR_EQUAL:
+                    return LE;
+                case GREATER_THAN:
+                    return GT;
+                case GREATER_THAN_OR_EQUAL:
+                    return GE;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    // Comparison result involving NaN, for which only <> holds
+    static final int UNORDERED = 2;
+
+    final int column;
+    final Op op;
+    // Long for integral, boolean (0/1) and date/time columns when the
+    // literal is integral; Double for other numeric comparisons; String
+    final Object value;
+
+    private ColumnPredicate(int column, Op op, Object value) {
+        this.column = column;
+        this.op = op;
+        this.value = value;
+    }
+
+    /**
+     * Removes from {@code filters} the conjuncts that can be evaluated by the
+     * scan and returns them; the rest are left for Calcite. Dynamic parameters
+     * are compared by their values in {@code root}.
+     */
+    static List<ColumnPredicate> pushDown(List<RexNode> filters, ColumnarTable header, DataContext root) {
+        List<ColumnPredicate> predicates = new ArrayList<>();
+        for (Iterator<RexNode> i = filters.iterator(); i.hasNext();) {
+            ColumnPredicate predicate = of(i.next(), header, null, root);
+            if (predicate != null) {
+                predicates.add(predicate);
+                i.remove();
+            }
+        }
+        return predicates;
+    }
+
+    /** Converts {@code $i op literal} or {@code literal op $i}, or returns null. */
+    static ColumnPredicate of(RexNode filter, ColumnarTable header) {
+        return of(filter, header, null, null);
+    }
+
+    /**
+     * As {@link #of(RexNode, ColumnarTable)} for a filter over a projection of
+     * the table, {@code $i} being column {@code columns[i]}, and also
+     * converting comparisons with dynamic parameters if their values are
+     * known from {@code root}.
+     */
+    static ColumnPredicate of(RexNode filter, ColumnarTable header, int[] columns, DataContext root) {
+        if (!(filter instanceof RexCall)) return null;
+        Op op = Op.of(filter.getKind());
+        List<RexNode> operands = ((RexCall) filter).getOperands();
+        if (op == null || operands.size() != 2) return null;
+        RexNode left = operands.get(0);
+        RexNode right = operands.get(1);
+        if ((left instanceof RexLiteral || left instanceof RexDynamicParam) && right instanceof RexInputRef) {
+            op = Op.of(filter.getKind().reverse());
+            RexNode swap = left;
+            left = right;
+            right = swap;
+        }
+        if (!(left instanceof RexInputRef)) {
+            return null;
+        }
+        int column = ((RexInputRef) left).getIndex();
+        if (columns != null) {
+            column = columns[column];
+        }
+        ColumnarTable.Type type = header.columns.get(column).type;
+        Object value;
+        if (right instanceof RexLiteral && !((RexLiteral) right).isNull()) {
+            value = value(type, (RexLiteral) right);
+        } else if (right instanceof RexDynamicParam && root != null) {
+            value = value(type, root.get("?" + ((RexDynamicParam) right).getIndex()));
+        } else {
+            return null;
+        }
+        if (value == null || (type == ColumnarTable.Type.BOOLEAN && op != Op.EQ && op != Op.NE)) {
+            return null;
+        }
+        return new ColumnPredicate(column, op, value);
+    }
+
+    // The literal in the representation of the column's values, or null if
+    // the types do not line up without a conversion Calcite would insert
+    private static Object value(ColumnarTable.Type type, RexLiteral literal) {
+        switch (type) {
+            case STRING:
+            case CHAR:
+                switch (literal.getTypeName()) {
+                    case CHAR:
+                    case VARCHAR:
+                        return literal.getValueAs(String.class);
+                    default:
+                        return null;
+                }
+            case BOOLEAN:
+                switch (literal.getTypeName()) {
+                    case BOOLEAN:
+                        return literal.getValueAs(Boolean.class) ? 1L : 0L;
+                    default:
+                        return null;
+                }
+            case DATE:
+            case TIME:
+                return literal.getTypeName() == type.sqlType ? (Object) (long) literal.getValueAs(Integer.class) : null;
+            case TIMESTAMP:
+                return literal.getTypeName() == type.sqlType ? literal.getValueAs(Long.class) : null;
+            case FLOAT:
+                // REAL values compare as floats; not worth the special case
+                return null;
+            default:
+                switch (literal.getTypeName()) {
+                    case TINYINT:
+                    case SMALLINT:
+                    case INTEGER:
+                    case BIGINT:
+                    case DECIMAL:
+                    case REAL:
+                    case FLOAT:
+                    case DOUBLE:
+                        BigDecimal number = literal.getValueAs(BigDecimal.class);
+                        if (type != ColumnarTable.Type.DOUBLE) {
+                            try {
+                                return number.longValueExact();
+                            } catch (ArithmeticException e) {
+                                // Fractional or out of range: compare as doubles
+                            }
+                        }
+                        return number.doubleValue();
+                    default:
+                        return null;
+                }
+        }
+    }
+
+    // The value of a dynamic parameter, in Calcite's internal representation
+    // of the parameter's type, in the representation of the column's values
+    private static Object value(ColumnarTable.Type type, Object value) {
+        switch (type) {
+            case STRING:
+            case CHAR:
+                return value instanceof String ? value : null;
+            case BOOLEAN:
+                return value instanceof Boolean ? (Object) ((Boolean) value ? 1L : 0L) : null;
+            case DATE:
+            case TIME:
+                return value instanceof Integer ? (Object) (long) (Integer) value : null;
+            case TIMESTAMP:
+                return value instanceof Long ? value : null;
+            case FLOAT:
+                return null;
+            default:
+                if (value instanceof Byte || value instanceof Short || value instanceof Integer
+                        || value instanceof Long) {
+                    long number = ((Number) value).longValue();
+                    return type == ColumnarTable.Type.DOUBLE ? (Object) (double) number : (Object) number;
+                }
+                if (value instanceof BigDecimal) {
+                    if (type != ColumnarTable.Type.DOUBLE) {
+                        try {
+                            return ((BigDecimal) value).longValueExact();
+                        } catch (ArithmeticException e) {
+                            // Fractional or out of range: compare as doubles
+                        }
+                    }
+                    return ((BigDecimal) value).doubleValue();
+                }
+                return value instanceof Double || value instanceof Float ? ((Number) value).doubleValue() : null;
+        }
+    }
+
+    /** The predicate as a test of a row of {@code column}, which must be this predicate's column. */
+    IntPredicate bind(ColumnarTable.Column column) {
+        BitSet nulls = column.nulls;
+        if (column instanceof ColumnarTable.StringColumn) {
+            // Evaluated once per distinct value
+            ColumnarTable.StringColumn strings = (ColumnarTable.StringColumn) column;
+            boolean[] matches = new boolean[strings.dictionary.length];
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = op.holds(compare(strings.dictionary[i]));
+            }
+            int[] codes = strings.codes;
+            return row -> !nulls.get(row) && matches[codes[row]];
+        }
+        if (column instanceof ColumnarTable.BooleanColumn) {
+            boolean[] values = ((ColumnarTable.BooleanColumn) column).values;
+            boolean expected = ((Long) value) == 1L;
+            boolean equal = op == Op.EQ;
+            return row -> !nulls.get(row) && (values[row] == expected) == equal;
+        }
+        if (value instanceof Long) {
+            long v = (Long) value;
+            if (column instanceof ColumnarTable.IntColumn) {
+                int[] values = ((ColumnarTable.IntColumn) column).values;
+                return row -> !nulls.get(row) && op.holds(Long.compare(values[row], v));
+            }
+            long[] values = ((ColumnarTable.LongColumn) column).values;
+            return row -> !nulls.get(row) && op.holds(Long.compare(values[row], v));
+        }
+        double v = (Double) value;
+        if (column instanceof ColumnarTable.IntColumn) {
+            int[] values = ((ColumnarTable.IntColumn) column).values;
+            return row -> !nulls.get(row) && op.holds(compare(values[row], v));
+        }
+        if (column instanceof ColumnarTable.LongColumn) {
+            long[] values = ((ColumnarTable.LongColumn) column).values;
+            return row -> !nulls.get(row) && op.holds(compare(values[row], v));
+        }
+        double[] values = ((ColumnarTable.DoubleColumn) column).values;
+        return row -> !nulls.get(row) && op.holds(compare(values[row], v));
+    }
+
+    /**
+     * Whether any value between {@code min} and {@code max} (a block's bounds
+     * as kept by {@link ZoneMap}) can match; a null {@code min} means the
+     * block holds no values, only nulls.
+     */
+    boolean mayMatch(Object min, Object max) {
+        if (min == null) return false;
+        int low = compare(min);
+        int high = compare(max);
+        switch (op) {
+            case EQ:
+                return (low == -1 || low == 0) && (high == 0 || high == 1);
+            case NE:
+                return !(low == 0 && high == 0);
+            case LT:
+                return low == -1;
+            case LE:
+                return low == -1 || low == 0;
+            case GT:
+                return high == 1;
+            default:
+                return high == 0 || high == 1;
+        }
+    }
+
+    /**
+     * Compares a value in the column's representation (as in zone maps and
+     * statistics: Long, Double or String) with the literal: -1, 0, 1 or
+     * {@link #UNORDERED}.
+     */
+    int compare(Object x) {
+        if (value instanceof String) {
+            return Integer.signum(((String) x).compareTo((String) value));
+        }
+        if (value instanceof Long && x instanceof Long) {
+            return Long.compare((Long) x, (Long) value);
+        }
+        return compare(((Number) x).doubleValue(), ((Number) value).doubleValue());
+    }
+
+    // Primitive comparison as in generated code: NaN is unordered and 0.0 == -0.0
+    private static int compare(double a, double b) {
+        return a < b ? -1 : a > b ? 1 : a == b ? 0 : UNORDERED;
+    }
+
+    @Override
+    public String toString() {
+        return "$" + column + " " + op + " " + value;
+    }
+}
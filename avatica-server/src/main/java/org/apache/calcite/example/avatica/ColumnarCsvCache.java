@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed CSV files kept in memory as {@link ColumnarTable}s. An entry is
+ * valid while its file keeps the size and modification time it was read
+ * with; a changed file is read again on its next access. The total estimated
+ * size stays within a byte budget by evicting least recently used tables.
+ *
+ * <p>Files are parsed outside the lock, so a slow read does not block hits
+ * on other tables; two threads missing on the same file at once may both
+ * parse it.
+ */
+public class ColumnarCsvCache {
+    private static final class Entry {
+        final long length;
+        final long lastModified;
+        final ColumnarTable table;
+        final long bytes;
+
+        Entry(long length, long lastModified, ColumnarTable table) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.table = table;
+            this.bytes = table.bytes();
+        }
+    }
+
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile MappedCsvScanner scanner;
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    public ColumnarCsvCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the file's contents, reading it if it is not cached or has changed. */
+    ColumnarTable get(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                hits++;
+                return entry.table;
+            }
+            misses++;
+            if (entry != null) {
+                invalidations++;
+                remove(file);
+            }
+        }
+
+        ColumnarTable table;
+        try {
+            MappedCsvScanner scanner = this.scanner;
+            table = scanner != null ? scanner.read(file) : CsvColumnarReader.read(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + file, e);
+        }
+        Entry entry = new Entry(length, lastModified, table);
+        synchronized (this) {
+            if (entry.bytes <= maxBytes) {
+                remove(file);
+                entries.put(file, entry);
+                bytes += entry.bytes;
+                evict();
+            }
+        }
+        return table;
+    }
+
+    private void remove(File file) {
+        Entry old = entries.remove(file);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<File, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /** Reads files in parallel splits with {@code scanner}, or with a single thread if null. */
+    void setScanner(MappedCsvScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    MappedCsvScanner getScanner() {
+        return scanner;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Fraction of lookups served from memory, or 0 before the first lookup. */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ColumnarCsvCache{tables=" + entries.size() + ", bytes=" + bytes + "/" + maxBytes
+            + ", hits=" + hits + ", misses=" + misses + ", hitRate=" + String.format("%.3f", getHitRate())
+            + ", invalidations=" + invalidations + ", evictions=" + evictions + "}";
+    }
+}
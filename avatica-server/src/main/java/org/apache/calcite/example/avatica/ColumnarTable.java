@@ -0,0 +1,337 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A CSV table held in memory column by column. Numeric, boolean and
+ * date/time columns are primitive arrays in the representation Calcite's
+ * enumerable runtime expects; string columns are dictionary encoded. Nulls
+ * (empty fields of non-string columns) are tracked in a bit set per column.
+ */
+final class ColumnarTable {
+    /**
+     * Column types of the CSV header, as in {@code NAME:type}; the names of
+     * the CSV adapter's {@code CsvFieldType}, whose unknown names also read
+     * as strings. CHAR columns hold strings like STRING ones.
+     */
+    enum Type {
+        STRING(SqlTypeName.VARCHAR),
+        BOOLEAN(SqlTypeName.BOOLEAN),
+        BYTE(SqlTypeName.TINYINT),
+        SHORT(SqlTypeName.SMALLINT),
+        INT(SqlTypeName.INTEGER),
+        LONG(SqlTypeName.BIGINT),
+        FLOAT(SqlTypeName.REAL),
+        DOUBLE(SqlTypeName.DOUBLE),
+        DATE(SqlTypeName.DATE),
+        TIME(SqlTypeName.TIME),
+        TIMESTAMP(SqlTypeName.TIMESTAMP),
+        CHAR(SqlTypeName.CHAR);
+
+        final SqlTypeName sqlType;
+
+        Type(SqlTypeName sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        static Type of(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return STRING;
+            }
+        }
+
+        /** Whether the column is a {@link StringColumn}. */
+        boolean isString() {
+            return this == STRING || this == CHAR;
+        }
+    }
+
+    /** One column; {@link #get} returns the value Calcite expects for its type. */
+    abstract static class Column {
+        final Type type;
+        final BitSet nulls;
+
+        Column(Type type, BitSet nulls) {
+            this.type = type;
+            this.nulls = nulls;
+        }
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        abstract Object get(int row);
+
+        /** Approximate heap footprint. */
+        abstract long bytes();
+    }
+
+    /** TINYINT, SMALLINT, INTEGER, and DATE (days) and TIME (milliseconds). */
+    static final class IntColumn extends Column {
+        final int[] values;
+
+        IntColumn(Type type, int[] values, BitSet nulls) {
+            super(type, nulls);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            if (isNull(row)) return null;
+            switch (type) {
+                case BYTE:
+                    return (byte) values[row];
+                case SHORT:
+                    return (short) values[row];
+                default:
+                    return values[row];
+            }
+        }
+
+        @Override
+        long bytes() {
+            return 4L * values.length;
+        }
+    }
+
+    /** BIGINT, and TIMESTAMP (milliseconds). */
+    static final class LongColumn extends Column {
+        final long[] values;
+
+        LongColumn(Type type, long[] values, BitSet nulls) {
+            super(type, nulls);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        long bytes() {
+            return 8L * values.length;
+        }
+    }
+
+    /** REAL and DOUBLE. */
+    static final class DoubleColumn extends Column {
+        final double[] values;
+
+        DoubleColumn(Type type, double[] values, BitSet nulls) {
+            super(type, nulls);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            if (isNull(row)) return null;
+            return type == Type.FLOAT ? (Object) (float) values[row] : (Object) values[row];
+        }
+
+        @Override
+        long bytes() {
+            return 8L * values.length;
+        }
+    }
+
+    static final class BooleanColumn extends Column {
+        final boolean[] values;
+
+        BooleanColumn(boolean[] values, BitSet nulls) {
+            super(Type.BOOLEAN, nulls);
+            this.values = values;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        @Override
+        long bytes() {
+            return values.length;
+        }
+    }
+
+    /** Strings as codes into a dictionary of the distinct values. */
+    static final class StringColumn extends Column {
+        final String[] dictionary;
+        final int[] codes;
+
+        StringColumn(Type type, String[] dictionary, int[] codes, BitSet nulls) {
+            super(type, nulls);
+            this.dictionary = dictionary;
+            this.codes = codes;
+        }
+
+        @Override
+        Object get(int row) {
+            return isNull(row) ? null : dictionary[codes[row]];
+        }
+
+        @Override
+        long bytes() {
+            long bytes = 4L * codes.length;
+            for (String value : dictionary) {
+                bytes += 40 + 2L * value.length();
+            }
+            return bytes;
+        }
+    }
+
+    final List<String> names;
+    final List<Column> columns;
+    final int rowCount;
+
+    ColumnarTable(List<String> names, List<Column> columns, int rowCount) {
+        this.names = names;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Appends tables with the columns of {@code header}, such as the parsed
+     * splits of one file, merging the string dictionaries.
+     */
+    static ColumnarTable concat(ColumnarTable header, List<ColumnarTable> parts) {
+        int rows = 0;
+        for (ColumnarTable part : parts) {
+            rows += part.rowCount;
+        }
+        List<Column> columns = new ArrayList<>();
+        for (int c = 0; c < header.columns.size(); c++) {
+            Type type = header.columns.get(c).type;
+            BitSet nulls = new BitSet();
+            int offset = 0;
+            for (ColumnarTable part : parts) {
+                BitSet partNulls = part.columns.get(c).nulls;
+                for (int row = partNulls.nextSetBit(0); row >= 0; row = partNulls.nextSetBit(row + 1)) {
+                    nulls.set(offset + row);
+                }
+                offset += part.rowCount;
+            }
+
+            offset = 0;
+            Column column;
+            switch (type) {
+                case STRING:
+                case CHAR: {
+                    Map<String, Integer> dictionary = new HashMap<>();
+                    List<String> values = new ArrayList<>();
+                    int[] codes = new int[rows];
+                    for (ColumnarTable part : parts) {
+                        StringColumn partColumn = (StringColumn) part.columns.get(c);
+                        int[] remap = new int[partColumn.dictionary.length];
+                        for (int i = 0; i < remap.length; i++) {
+                            String value = partColumn.dictionary[i];
+                            Integer code = dictionary.get(value);
+                            if (code == null) {
+                                code = values.size();
+                                dictionary.put(value, code);
+                                values.add(value);
+                            }
+                            remap[i] = code;
+                        }
+                        for (int i = 0; i < part.rowCount; i++) {
+                            codes[offset + i] = remap[partColumn.codes[i]];
+                        }
+                        offset += part.rowCount;
+                    }
+                    column = new StringColumn(type, values.toArray(new String[0]), codes, nulls);
+                    break;
+                }
+                case LONG:
+                case TIMESTAMP: {
+                    long[] values = new long[rows];
+                    for (ColumnarTable part : parts) {
+                        System.arraycopy(((LongColumn) part.columns.get(c)).values, 0, values, offset, part.rowCount);
+                        offset += part.rowCount;
+                    }
+                    column = new LongColumn(type, values, nulls);
+                    break;
+                }
+                case FLOAT:
+                case DOUBLE: {
+                    double[] values = new double[rows];
+                    for (ColumnarTable part : parts) {
+                        System.arraycopy(((DoubleColumn) part.columns.get(c)).values, 0, values, offset, part.rowCount);
+                        offset += part.rowCount;
+                    }
+                    column = new DoubleColumn(type, values, nulls);
+                    break;
+                }
+                case BOOLEAN: {
+                    boolean[] values = new boolean[rows];
+                    for (ColumnarTable part : parts) {
+                        System.arraycopy(((BooleanColumn) part.columns.get(c)).values, 0, values, offset, part.rowCount);
+                        offset += part.rowCount;
+                    }
+                    column = new BooleanColumn(values, nulls);
+                    break;
+                }
+                default: {
+                    int[] values = new int[rows];
+                    for (ColumnarTable part : parts) {
+                        System.arraycopy(((IntColumn) part.columns.get(c)).values, 0, values, offset, part.rowCount);
+                        offset += part.rowCount;
+                    }
+                    column = new IntColumn(type, values, nulls);
+                }
+            }
+            columns.add(column);
+        }
+        return new ColumnarTable(header.names, columns, rows);
+    }
+
+    RelDataType rowType(RelDataTypeFactory typeFactory) {
+        List<RelDataType> types = new ArrayList<>();
+        for (Column column : columns) {
+            types.add(typeFactory.createTypeWithNullability(typeFactory.createSqlType(column.type.sqlType), true));
+        }
+        return typeFactory.createStructType(types, names);
+    }
+
+    Object[] row(int row) {
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = columns.get(i).get(row);
+        }
+        return values;
+    }
+
+    long bytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.bytes() + rowCount / 8;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parses a CSV file in the Calcite CSV adapter's format (a header of
+ * {@code NAME:type} fields, optionally gzipped) into a {@link ColumnarTable}.
+ * Empty fields are null except in string columns, as in the adapter.
+ */
+final class CsvColumnarReader {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private CsvColumnarReader() {
+    }
+
+    static ColumnarTable read(File file) throws IOException {
+        try (Reader reader = open(file)) {
+            return read(reader);
+        }
+    }
+
+    static Reader open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /** Reads only the header, as a table without rows. */
+    static ColumnarTable readHeader(File file) throws IOException {
+        try (Reader reader = open(file)) {
+            List<String> header = new RecordParser(reader).next();
+            List<String> names = new ArrayList<>();
+            List<ColumnBuilder> builders = new ArrayList<>();
+            parseHeader(header, names, builders);
+            return build(names, builders, 0);
+        }
+    }
+
+    static ColumnarTable read(Reader reader) throws IOException {
+        RecordParser parser = new RecordParser(reader);
+        List<String> names = new ArrayList<>();
+        List<ColumnBuilder> builders = new ArrayList<>();
+        parseHeader(parser.next(), names, builders);
+
+        int rows = 0;
+        for (List<String> record = parser.next(); record != null; record = parser.next()) {
+            for (int i = 0; i < builders.size(); i++) {
+                builders.get(i).add(i < record.size() ? record.get(i) : null);
+            }
+            rows++;
+        }
+        return build(names, builders, rows);
+    }
+
+    // Splits NAME:type header fields; a field without a type is a string
+    static void parseHeader(List<String> header, List<String> names, List<ColumnBuilder> builders) {
+        if (header == null) return;
+        for (String field : header) {
+            int colon = field.indexOf(':');
+            names.add(colon < 0 ? field : field.substring(0, colon));
+            builders.add(new ColumnBuilder(colon < 0 ? ColumnarTable.Type.STRING
+                : ColumnarTable.Type.of(field.substring(colon + 1))));
+        }
+    }
+
+    static ColumnarTable build(List<String> names, List<ColumnBuilder> builders, int rows) {
+        List<ColumnarTable.Column> columns = new ArrayList<>();
+        for (ColumnBuilder builder : builders) {
+            columns.add(builder == null ? null : builder.build());
+        }
+        return new ColumnarTable(names, columns, rows);
+    }
+
+    /** Accumulates one column's parsed values in a growable primitive array. */
+    static final class ColumnBuilder {
+        private final ColumnarTable.Type type;
+        private final BitSet nulls = new BitSet();
+        private int size;
+        private int[] ints;
+        private long[] longs;
+        private double[] doubles;
+        private boolean[] booleans;
+        private Map<String, Integer> dictionary;
+        private List<String> values;
+
+        ColumnBuilder(ColumnarTable.Type type) {
+            this.type = type;
+            switch (type) {
+                case STRING:
+                case CHAR:
+                    ints = new int[16];
+                    dictionary = new HashMap<>();
+                    values = new ArrayList<>();
+                    break;
+                case BOOLEAN:
+                    booleans = new boolean[16];
+                    break;
+                case LONG:
+                case TIMESTAMP:
+                    longs = new long[16];
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    doubles = new double[16];
+                    break;
+                default:
+                    ints = new int[16];
+            }
+        }
+
+        ColumnarTable.Type type() {
+            return type;
+        }
+
+        void add(String field) {
+            if (field == null || (field.isEmpty() && !type.isString())) {
+                addNull();
+                return;
+            }
+            switch (type) {
+                case STRING:
+                case CHAR:
+                    addString(field);
+                    break;
+                case BOOLEAN:
+                    addBoolean(Boolean.parseBoolean(field.trim()));
+                    break;
+                case LONG:
+                    addLong(Long.parseLong(field.trim()));
+                    break;
+                case TIMESTAMP:
+                    addLong(LocalDateTime.parse(field.trim(), TIMESTAMP_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli());
+                    break;
+                case FLOAT:
+                case DOUBLE:
+                    addDouble(Double.parseDouble(field.trim()));
+                    break;
+                case DATE:
+                    addInt((int) LocalDate.parse(field.trim()).toEpochDay());
+                    break;
+                case TIME:
+                    addInt((int) (LocalTime.parse(field.trim()).toNanoOfDay() / 1_000_000));
+                    break;
+                default:
+                    addInt(Integer.parseInt(field.trim()));
+            }
+        }
+
+        void addNull() {
+            grow();
+            nulls.set(size++);
+        }
+
+        void addInt(int value) {
+            grow();
+            ints[size++] = value;
+        }
+
+        void addLong(long value) {
+            grow();
+            longs[size++] = value;
+        }
+
+        void addDouble(double value) {
+            grow();
+            doubles[size++] = value;
+        }
+
+        void addBoolean(boolean value) {
+            grow();
+            booleans[size++] = value;
+        }
+
+        void addString(String value) {
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = values.size();
+                dictionary.put(value, code);
+                values.add(value);
+            }
+            addInt(code);
+        }
+
+        private void grow() {
+            int capacity = ints != null ? ints.length : longs != null ? longs.length
+                : doubles != null ? doubles.length : booleans.length;
+            if (size < capacity) return;
+            int larger = capacity * 2;
+            if (ints != null) ints = Arrays.copyOf(ints, larger);
+            if (longs != null) longs = Arrays.copyOf(longs, larger);
+            if (doubles != null) doubles = Arrays.copyOf(doubles, larger);
+            if (booleans != null) booleans = Arrays.copyOf(booleans, larger);
+        }
+
+        ColumnarTable.Column build() {
+            switch (type) {
+                case STRING:
+                case CHAR:
+                    return new ColumnarTable.StringColumn(type, values.toArray(new String[0]),
+                        Arrays.copyOf(ints, size), nulls);
+                case BOOLEAN:
+                    return new ColumnarTable.BooleanColumn(Arrays.copyOf(booleans, size), nulls);
+                case LONG:
+                case TIMESTAMP:
+                    return new ColumnarTable.LongColumn(type, Arrays.copyOf(longs, size), nulls);
+                case FLOAT:
+                case DOUBLE:
+                    return new ColumnarTable.DoubleColumn(type, Arrays.copyOf(doubles, size), nulls);
+                default:
+                    return new ColumnarTable.IntColumn(type, Arrays.copyOf(ints, size), nulls);
+            }
+        }
+    }
+
+    /** Splits RFC 4180 records: quoted fields may hold commas, newlines and doubled quotes. */
+    static final class RecordParser {
+        private final Reader reader;
+        private final StringBuilder field = new StringBuilder();
+        private boolean eof;
+
+        RecordParser(Reader reader) {
+            this.reader = reader.markSupported() ? reader : new BufferedReader(reader);
+        }
+
+        /** Next record, or null at end of input; blank lines are skipped. */
+        List<String> next() throws IOException {
+            while (!eof) {
+                List<String> record = new ArrayList<>();
+                field.setLength(0);
+                boolean quoted = false;
+                boolean any = false;
+                while (true) {
+                    int c = reader.read();
+                    if (c < 0) {
+                        eof = true;
+                        break;
+                    }
+                    any = true;
+                    if (quoted) {
+                        if (c == '"') {
+                            reader.mark(1);
+                            int d = reader.read();
+                            if (d == '"') {
+                                field.append('"');
+                            } else {
+                                quoted = false;
+                                if (d >= 0) reader.reset();
+                            }
+                        } else {
+                            field.append((char) c);
+                        }
+                    } else if (c == '"') {
+                        quoted = true;
+                    } else if (c == ',') {
+                        record.add(field.toString());
+                        field.setLength(0);
+                    } else if (c == '\n') {
+                        break;
+                    } else if (c != '\r') {
+                        field.append((char) c);
+                    }
+                }
+                if (!any || (record.isEmpty() && field.length() == 0)) {
+                    continue;
+                }
+                record.add(field.toString());
+                return record;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.interpreter.Bindables;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinInfo;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.BuiltInMetadata;
+import org.apache.calcite.rel.metadata.ChainedRelMetadataProvider;
+import org.apache.calcite.rel.metadata.ReflectiveRelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelColumnOrigin;
+import org.apache.calcite.rel.metadata.RelMdDistinctRowCount;
+import org.apache.calcite.rel.metadata.RelMdRowCount;
+import org.apache.calcite.rel.metadata.RelMdSelectivity;
+import org.apache.calcite.rel.metadata.RelMdUtil;
+import org.apache.calcite.rel.metadata.RelMetadataProvider;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.runtime.Hook;
+import org.apache.calcite.util.ImmutableBitSet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Planner metadata from {@link TableStatistics}: row counts of filtered
+ * scans, selectivities of comparisons with literals (from the histograms),
+ * distinct counts of columns, and the selectivity of equi-joins on analysed
+ * columns, {@code 1 / max(ndv(left), ndv(right))} per key. Relational
+ * expressions over tables that have not been analysed get Calcite's default
+ * estimates.
+ *
+ * <p>The model gives no way to set the metadata provider, so it is chained
+ * in front of the cluster's provider from {@link Hook#TRIMMED}, which runs
+ * for every statement after it is converted and before it is optimised.
+ * The handlers are public because Calcite generates code that calls them.
+ */
+public final class CsvRelMetadata {
+    private static final RelMetadataProvider SOURCE = ChainedRelMetadataProvider.of(Arrays.asList(
+        ReflectiveRelMetadataProvider.reflectiveSource(new RowCount(), BuiltInMetadata.RowCount.Handler.class),
+        ReflectiveRelMetadataProvider.reflectiveSource(new DistinctRowCount(),
+            BuiltInMetadata.DistinctRowCount.Handler.class),
+        ReflectiveRelMetadataProvider.reflectiveSource(new Selectivity(), BuiltInMetadata.Selectivity.Handler.class)));
+
+    // Clusters already given the provider, in case the hook runs twice for one
+    private static final Map<RelOptCluster, Boolean> CLUSTERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static Hook.Closeable hook;
+
+    private CsvRelMetadata() {
+    }
+
+    /** Registers the hook; idempotent. */
+    static synchronized void install() {
+        if (hook == null) {
+            hook = Hook.TRIMMED.add((Consumer<RelNode>) CsvRelMetadata::apply);
+        }
+    }
+
+    private static void apply(RelNode rel) {
+        RelOptCluster cluster = rel.getCluster();
+        if (CLUSTERS.put(cluster, Boolean.TRUE) == null) {
+            cluster.setMetadataProvider(ChainedRelMetadataProvider.of(
+                Arrays.asList(SOURCE, cluster.getMetadataProvider())));
+            cluster.invalidateMetadataQuery();
+        }
+    }
+
+    // Statistics of the table a scan reads, or null if it is not an analysed CSV table
+    private static TableStatistics statistics(TableScan scan) {
+        CachedCsvTable table = scan.getTable().unwrap(CachedCsvTable.class);
+        return table == null ? null : table.statistics();
+    }
+
+    // Table column of each output field of a scan, or null if they are the same
+    private static int[] columns(TableScan scan) {
+        return scan instanceof Bindables.BindableTableScan
+            ? ((Bindables.BindableTableScan) scan).projects.toIntArray() : null;
+    }
+
+    // Filters a bindable scan applies itself
+    private static List<RexNode> filters(TableScan scan) {
+        return scan instanceof Bindables.BindableTableScan
+            ? ((Bindables.BindableTableScan) scan).filters : Collections.emptyList();
+    }
+
+    // Selectivity of the conjunction of predicates over the given columns of the table
+    private static double selectivity(TableStatistics stats, List<RexNode> conjunctions, int[] columns) {
+        double selectivity = 1;
+        for (RexNode conjunction : conjunctions) {
+            ColumnPredicate predicate = ColumnPredicate.of(conjunction, stats.header, columns, null);
+            selectivity *= predicate != null ? stats.selectivity(predicate)
+                : RelMdUtil.guessSelectivity(conjunction);
+        }
+        return selectivity;
+    }
+
+    /** Row count of a scan: the analysed row count, reduced by the filters a bindable scan applies. */
+    public static final class RowCount extends RelMdRowCount {
+        public Double getRowCount(TableScan scan, RelMetadataQuery mq) {
+            TableStatistics stats = statistics(scan);
+            if (stats == null) {
+                return super.getRowCount(scan, mq);
+            }
+            return Math.max(1, scan.getTable().getRowCount() * selectivity(stats, filters(scan), null));
+        }
+    }
+
+    /** Distinct values of columns of a scan: the product of the columns' distinct counts. */
+    public static final class DistinctRowCount extends RelMdDistinctRowCount {
+        public Double getDistinctRowCount(TableScan scan, RelMetadataQuery mq, ImmutableBitSet groupKey,
+                RexNode predicate) {
+            TableStatistics stats = statistics(scan);
+            if (stats == null || groupKey.isEmpty()) {
+                return super.getDistinctRowCount(scan, mq, groupKey, predicate);
+            }
+            int[] columns = columns(scan);
+            int[] group = groupKey.toArray();
+            if (columns != null) {
+                for (int i = 0; i < group.length; i++) {
+                    group[i] = columns[group[i]];
+                }
+            }
+            double distinct = stats.distinctCount(group);
+            // Distinct values among the rows that pass the scan's and the caller's filters
+            Double rows = mq.getRowCount(scan);
+            if (rows == null) {
+                return distinct;
+            }
+            Double selectivity = mq.getSelectivity(scan, predicate);
+            double selected = selectivity == null ? rows : rows * selectivity;
+            return RelMdUtil.numDistinctVals(distinct, selected);
+        }
+    }
+
+    /** Selectivity of predicates on scans and of equi-join conditions on analysed columns. */
+    public static final class Selectivity extends RelMdSelectivity {
+        public Double getSelectivity(TableScan scan, RelMetadataQuery mq, RexNode predicate) {
+            TableStatistics stats = statistics(scan);
+            if (stats == null || predicate == null) {
+                return super.getSelectivity(scan, mq, predicate);
+            }
+            return selectivity(stats, RelOptUtil.conjunctions(predicate), columns(scan));
+        }
+
+        public Double getSelectivity(Join join, RelMetadataQuery mq, RexNode predicate) {
+            if (predicate == null || join.getJoinType() != JoinRelType.INNER) {
+                return super.getSelectivity(join, mq, predicate);
+            }
+            JoinInfo info = JoinInfo.of(join.getLeft(), join.getRight(), predicate);
+            if (info.leftKeys.isEmpty()) {
+                return super.getSelectivity(join, mq, predicate);
+            }
+            double selectivity = 1;
+            for (int i = 0; i < info.leftKeys.size(); i++) {
+                Double left = analyzedDistinctCount(mq, join.getLeft(), info.leftKeys.get(i));
+                Double right = analyzedDistinctCount(mq, join.getRight(), info.rightKeys.get(i));
+                if (left == null || right == null) {
+                    return super.getSelectivity(join, mq, predicate);
+                }
+                selectivity /= Math.max(1, Math.max(left, right));
+            }
+            if (!info.isEqui()) {
+                selectivity *= RelMdUtil.guessSelectivity(
+                    RexUtil.composeConjunction(join.getCluster().getRexBuilder(), info.nonEquiConditions));
+            }
+            return selectivity;
+        }
+
+        // Distinct values of a column that comes unchanged from an analysed CSV table, else null
+        private static Double analyzedDistinctCount(RelMetadataQuery mq, RelNode rel, int column) {
+            RelColumnOrigin origin = mq.getColumnOrigin(rel, column);
+            if (origin == null || origin.isDerived()) {
+                return null;
+            }
+            CachedCsvTable table = origin.getOriginTable().unwrap(CachedCsvTable.class);
+            if (table == null || table.statistics() == null) {
+                return null;
+            }
+            return mq.getDistinctRowCount(rel, ImmutableBitSet.of(column), null);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.avatica.proto.Common;
+import org.apache.calcite.avatica.remote.Service.RpcMetadataResponse;
+import org.apache.calcite.avatica.server.AvaticaHandler;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs the requests of a protobuf Avatica handler off Jetty's threads, so
+ * that long CSV scans do not hold the threads short calls need.
+ *
+ * <p>In {@link Mode#VIRTUAL} mode every request runs on a virtual thread of
+ * its own (Java 21 and later). In {@link Mode#POOLED} mode requests run on
+ * one of two bounded pools, by request type: statement work (prepare,
+ * execute, fetch) on one, and connection and catalog calls on the other, so
+ * that metadata calls never wait behind scans; a request arriving when its
+ * pool's queue is full gets 503. Short and long statements share their
+ * pool, so a short query still waits once long scans hold every statement
+ * thread. {@link Mode#JETTY} leaves requests on Jetty's thread pool, as
+ * without the handler.
+ *
+ * <p>In every mode the handler times the phases of each request into
+ * {@link ServerMetrics}, and answers {@code GET /metrics} with them. The
+ * open connections and statements are not served over HTTP, since their
+ * ids are all a client needs to use another client's connection; they are
+ * read through the {@code handles} operation of the metrics MBean or
+ * {@link SimpleCalciteAvaticaServer#getHandles()}. It also encodes responses in columnar form or gzips them when the client
+ * names the encoding in the {@code X-Avatica-Frame-Encoding} header (see
+ * {@link FrameEncoding}).
+ */
+public class ExecutionHandler extends HandlerWrapper implements AvaticaHandler {
+    /** How requests are executed. */
+    public enum Mode {
+        JETTY, VIRTUAL, POOLED;
+
+        /** The mode named by system property {@code calcite.avatica.execution}, JETTY by default. */
+        public static Mode fromSystemProperty() {
+            return valueOf(System.getProperty("calcite.avatica.execution", "jetty").toUpperCase(Locale.ROOT));
+        }
+    }
+
+    static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    // Requests that prepare, run or read from statements
+    private static final Set<String> STATEMENT_REQUESTS = new HashSet<>(Arrays.asList(
+        "PrepareRequest", "PrepareAndExecuteRequest", "ExecuteRequest", "FetchRequest",
+        "PrepareAndExecuteBatchRequest", "ExecuteBatchRequest", "SyncResultsRequest"));
+
+    private final AvaticaHandler handler;
+    private final Mode mode;
+    private final ServerMetrics metrics;
+    private final int statementThreads;
+    private final int metadataThreads;
+    private final int queueSize;
+    private final AtomicLong rejected = new AtomicLong();
+    private ExecutorService statementExecutor;
+    private ExecutorService metadataExecutor;
+
+    /**
+     * @param statementThreads size of the pool for statement requests, in
+     *     POOLED mode
+     * @param metadataThreads size of the pool for other requests, in POOLED
+     *     mode
+     */
+    public ExecutionHandler(AvaticaHandler handler, Mode mode, ServerMetrics metrics, int statementThreads,
+            int metadataThreads, int queueSize) {
+        if (mode == Mode.VIRTUAL) {
+            // Fail at configuration rather than on the first request
+            newVirtualThreadExecutor().shutdown();
+        }
+        this.handler = handler;
+        this.mode = mode;
+        this.metrics = metrics;
+        this.statementThreads = statementThreads;
+        this.metadataThreads = metadataThreads;
+        this.queueSize = queueSize;
+        setHandler(handler);
+    }
+
+    /** Pools sized for the machine: two statement threads and one metadata thread per core. */
+    public ExecutionHandler(AvaticaHandler handler, Mode mode, ServerMetrics metrics) {
+        this(handler, mode, metrics, 2 * Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Requests turned away with 503 because their pool's queue was full. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void setServerRpcMetadata(RpcMetadataResponse metadata) {
+        handler.setServerRpcMetadata(metadata);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        switch (mode) {
+            case VIRTUAL:
+                statementExecutor = newVirtualThreadExecutor();
+                metadataExecutor = statementExecutor;
+                break;
+            case POOLED:
+                statementExecutor = newPool("avatica-statement", statementThreads);
+                metadataExecutor = newPool("avatica-metadata", metadataThreads);
+                break;
+            default:
+                break;
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (statementExecutor != null) {
+            statementExecutor.shutdownNow();
+            metadataExecutor.shutdownNow();
+            statementExecutor = null;
+            metadataExecutor = null;
+        }
+    }
+
+    private ThreadPoolExecutor newPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize), factory);
+    }
+
+    // Through reflection, since the module is compiled for releases without virtual threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if ("/metrics".equals(target) && "GET".equals(request.getMethod())) {
+            text(baseRequest, response, metrics.toPrometheus(), "text/plain; version=0.0.4; charset=utf-8");
+            return;
+        }
+        if (!"POST".equals(request.getMethod())) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+        // The body is read here to time it and route the request, and replayed to the handler
+        long start = System.nanoTime();
+        byte[] body = readFully(request.getInputStream());
+        metrics.decode.since(start);
+        HttpServletRequest replay = new ReplayedRequest(request, body);
+        // Only a client that names an encoding gets it; Accept-Encoding is not asked,
+        // since HTTP clients send it by default and may not hand gzip back undecoded
+        Set<String> encodings = FrameEncoding.requested(request.getHeader(FrameEncoding.FRAMES_HEADER));
+        CountingResponse counted = new CountingResponse(response,
+            encodings.contains("columnar"), encodings.contains("gzip"));
+        if (statementExecutor == null) {
+            serve(target, baseRequest, replay, counted);
+            return;
+        }
+        ExecutorService executor = isStatementRequest(body) ? statementExecutor : metadataExecutor;
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        baseRequest.setHandled(true);
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                metrics.queue.since(submitted);
+                try {
+                    serve(target, baseRequest, replay, counted);
+                } catch (IOException | ServletException | RuntimeException e) {
+                    sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } finally {
+                    async.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            async.complete();
+        }
+    }
+
+    // Runs the request on this thread; the meta marks where execution starts and ends
+    private void serve(String target, Request baseRequest, HttpServletRequest request, CountingResponse response)
+            throws IOException, ServletException {
+        ServerMetrics.Trace trace = ServerMetrics.trace();
+        trace.begin(System.nanoTime());
+        trace.client = request.getRemoteAddr();
+        metrics.requestsInFlight.increment();
+        try {
+            super.handle(target, baseRequest, request, response);
+            response.finish();
+        } finally {
+            metrics.requestsInFlight.decrement();
+            long end = System.nanoTime();
+            if (trace.metaEnter != 0) {
+                metrics.deserialize.record(trace.metaEnter - trace.begin);
+                metrics.serialize.record(end - trace.metaExit);
+            }
+            if (trace.frameRows >= 0) {
+                metrics.frameRows.update(trace.frameRows);
+                metrics.frameBytes.update(response.bytes);
+                metrics.frameWireBytes.update(response.wireBytes);
+            }
+            if (trace.cursor != null) {
+                // Row width and throughput in protobuf bytes, whatever the encoding, for the cursor's next frame
+                trace.cursor.sent(Math.max(0, trace.frameRows), response.bytes, trace.metaExit, end);
+            }
+        }
+    }
+
+    private static void text(Request baseRequest, HttpServletResponse response, String body, String contentType)
+            throws IOException {
+        byte[] text = body.getBytes(StandardCharsets.UTF_8);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.getOutputStream().write(text);
+        baseRequest.setHandled(true);
+    }
+
+    private static boolean isStatementRequest(byte[] body) {
+        try {
+            String name = Common.WireMessage.parseFrom(body).getName();
+            return STATEMENT_REQUESTS.contains(name.substring(name.lastIndexOf('$') + 1));
+        } catch (IOException e) {
+            // Let the handler report it
+            return false;
+        }
+    }
+
+    private static void sendError(HttpServletResponse response, int status) {
+        try {
+            if (!response.isCommitted()) {
+                response.sendError(status);
+            }
+        } catch (IOException e) {
+            // The client has gone
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) >= 0;) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The response, counting the bytes written to it: {@code bytes} as the
+     * handler wrote them in protobuf, {@code wireBytes} as sent. If the
+     * client asked for columnar frames or gzip, the handler's output is held
+     * until {@link #finish()} encodes it.
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+        private final boolean columnar;
+        private final boolean gzip;
+        private final ByteArrayOutputStream buffer;
+        long bytes;
+        long wireBytes;
+        private ServletOutputStream out;
+
+        CountingResponse(HttpServletResponse response, boolean columnar, boolean gzip) {
+            super(response);
+            this.columnar = columnar;
+            this.gzip = gzip;
+            this.buffer = columnar || gzip ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                OutputStream target = buffer != null ? buffer : super.getOutputStream();
+                out = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        target.write(b);
+                        bytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        target.write(b, off, len);
+                        bytes += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        target.flush();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener listener) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+            return out;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            if (buffer == null) {
+                super.setContentLength(length);
+            }
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            if (buffer == null) {
+                super.setContentLengthLong(length);
+            }
+        }
+
+        /** Writes the held output, encoded as the client asked. */
+        void finish() throws IOException {
+            if (buffer == null) {
+                wireBytes = bytes;
+                return;
+            }
+            byte[] body = buffer.toByteArray();
+            if (columnar) {
+                byte[] encoded = FrameEncoding.encode(body);
+                if (encoded != null) {
+                    setHeader(FrameEncoding.FRAMES_HEADER, "columnar");
+                    body = encoded;
+                }
+            }
+            if (gzip) {
+                setHeader("Content-Encoding", "gzip");
+                body = FrameEncoding.gzip(body);
+            }
+            super.setContentLength(body.length);
+            super.getOutputStream().write(body);
+            wireBytes = body.length;
+        }
+    }
+
+    /** The request with its body, already read, read again from memory. */
+    private static final class ReplayedRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        ReplayedRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener listener) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,688 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.avatica.proto.Common;
+import org.apache.calcite.avatica.proto.Responses;
+import org.apache.calcite.avatica.remote.AvaticaHttpClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Columnar encoding of the result frames of protobuf responses, and gzip
+ * compression of responses, for clients that ask for them.
+ *
+ * <p>A columnar response is the protobuf response with the rows taken out of
+ * its frames, followed by the frames' values column by column. A column of
+ * values that are all strings is a dictionary of the distinct strings and
+ * each row's index into it, run-length encoded if that is smaller, else
+ * bit-packed; numbers (including dates and times) are bit-packed as offsets
+ * from the column's minimum; booleans are bits; doubles are 8 bytes each.
+ * Nulls are a bitmap. A column is encoded so only if every value decodes
+ * back to the same protobuf value, and otherwise holds the values'
+ * protobuf encoding; a frame whose rows are not all plain scalar values
+ * keeps its rows in the protobuf response.
+ *
+ * <p>The driver's protocol is protobuf, so decoding builds the original
+ * protobuf response again. That is done by {@link Client}, an Avatica HTTP
+ * client which asks for the encodings named in the query string of the
+ * server URL, say
+ * {@code url=http://host:port/?frames=columnar&compression=gzip;httpclient_impl=}...
+ * (see {@link SimpleCalciteAvaticaServer#getJdbcUrl(Frames, Compression)}).
+ * Only gzip is offered as compression, since it needs no library beyond
+ * the JDK. The client asks for both in the {@code X-Avatica-Frame-Encoding}
+ * header, say {@code columnar, gzip}; the server ignores
+ * {@code Accept-Encoding}, which HTTP clients like Avatica's default one
+ * send unasked.
+ */
+public final class FrameEncoding {
+    /**
+     * Request header listing the encodings the client decodes, {@code columnar}
+     * and {@code gzip}; response header naming the frame encoding used.
+     */
+    static final String FRAMES_HEADER = "X-Avatica-Frame-Encoding";
+
+    private static final int MAGIC = 0x41434631; // "ACF1"
+
+    private static final String FETCH_RESPONSE = Responses.FetchResponse.class.getName();
+    private static final String EXECUTE_RESPONSE = Responses.ExecuteResponse.class.getName();
+    private static final String RESULT_SET_RESPONSE = Responses.ResultSetResponse.class.getName();
+
+    // How a column's non-null values are encoded
+    private static final byte RAW = 0;
+    private static final byte DICTIONARY = 1;
+    private static final byte NUMBER = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte DOUBLE = 4;
+
+    /** Encoding of result frames. */
+    public enum Frames {
+        PROTOBUF, COLUMNAR
+    }
+
+    /** Compression of responses. */
+    public enum Compression {
+        NONE, GZIP
+    }
+
+    private FrameEncoding() {
+    }
+
+    /**
+     * The response in the columnar encoding, or null if it has no frames to
+     * encode. {@code response} is a serialised {@code WireMessage}.
+     */
+    static byte[] encode(byte[] response) throws IOException {
+        Common.WireMessage wire = Common.WireMessage.parseFrom(response);
+        ByteArrayOutputStream columns = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(columns);
+        Function<Common.Frame, Common.Frame> encoder = frame -> {
+            try {
+                return encodeFrame(frame, out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        Common.WireMessage stripped = mapFrames(wire, encoder);
+        if (stripped == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(columns.size() + 64);
+        DataOutputStream result = new DataOutputStream(bytes);
+        result.writeInt(MAGIC);
+        byte[] message = stripped.toByteArray();
+        writeVarLong(result, message.length);
+        result.write(message);
+        columns.writeTo(result);
+        result.flush();
+        return bytes.toByteArray();
+    }
+
+    /** The serialised protobuf response that {@link #encode} was given. */
+    static byte[] decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a columnar response");
+        }
+        byte[] message = new byte[(int) readVarLong(in)];
+        in.readFully(message);
+        Function<Common.Frame, Common.Frame> decoder = frame -> {
+            try {
+                return decodeFrame(frame, in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        return mapFrames(Common.WireMessage.parseFrom(message), decoder).toByteArray();
+    }
+
+    // The response with each of its frames, in order, replaced; null if it has none
+    private static Common.WireMessage mapFrames(Common.WireMessage wire, Function<Common.Frame, Common.Frame> f)
+            throws IOException {
+        String name = wire.getName();
+        if (FETCH_RESPONSE.equals(name)) {
+            Responses.FetchResponse response = Responses.FetchResponse.parseFrom(wire.getWrappedMessage());
+            if (!response.hasFrame()) {
+                return null;
+            }
+            return wire.toBuilder().setWrappedMessage(
+                response.toBuilder().setFrame(f.apply(response.getFrame())).build().toByteString()).build();
+        } else if (EXECUTE_RESPONSE.equals(name)) {
+            Responses.ExecuteResponse.Builder response =
+                Responses.ExecuteResponse.parseFrom(wire.getWrappedMessage()).toBuilder();
+            boolean frames = false;
+            for (int i = 0; i < response.getResultsCount(); i++) {
+                Responses.ResultSetResponse result = response.getResults(i);
+                if (result.hasFirstFrame()) {
+                    response.setResults(i, result.toBuilder().setFirstFrame(f.apply(result.getFirstFrame())));
+                    frames = true;
+                }
+            }
+            if (!frames) {
+                return null;
+            }
+            return wire.toBuilder().setWrappedMessage(response.build().toByteString()).build();
+        } else if (RESULT_SET_RESPONSE.equals(name)) {
+            Responses.ResultSetResponse response = Responses.ResultSetResponse.parseFrom(wire.getWrappedMessage());
+            if (!response.hasFirstFrame()) {
+                return null;
+            }
+            return wire.toBuilder().setWrappedMessage(
+                response.toBuilder().setFirstFrame(f.apply(response.getFirstFrame())).build().toByteString()).build();
+        }
+        return null;
+    }
+
+    // Writes the frame's columns and returns it without rows, or returns it as is if it cannot be
+    private static Common.Frame encodeFrame(Common.Frame frame, DataOutputStream out) throws IOException {
+        int rows = frame.getRowsCount();
+        int columns = rows == 0 ? 0 : frame.getRows(0).getValueCount();
+        List<List<Common.TypedValue>> values = new ArrayList<>(columns);
+        for (int c = 0; c < columns; c++) {
+            values.add(new ArrayList<>(rows));
+        }
+        for (Common.Row row : frame.getRowsList()) {
+            if (row.getValueCount() != columns) {
+                out.writeByte(0);
+                return frame;
+            }
+            for (int c = 0; c < columns; c++) {
+                Common.ColumnValue value = row.getValue(c);
+                Common.TypedValue scalar = value.getScalarValue();
+                if (!value.equals(scalar(scalar))) {
+                    // An array, or in an older form
+                    out.writeByte(0);
+                    return frame;
+                }
+                values.get(c).add(scalar);
+            }
+        }
+        out.writeByte(1);
+        writeVarLong(out, rows);
+        writeVarLong(out, columns);
+        for (List<Common.TypedValue> column : values) {
+            encodeColumn(column, out);
+        }
+        return frame.toBuilder().clearRows().build();
+    }
+
+    private static Common.Frame decodeFrame(Common.Frame frame, DataInputStream in) throws IOException {
+        if (in.readByte() == 0) {
+            return frame;
+        }
+        int rows = (int) readVarLong(in);
+        int columns = (int) readVarLong(in);
+        List<Common.TypedValue[]> values = new ArrayList<>(columns);
+        for (int c = 0; c < columns; c++) {
+            values.add(decodeColumn(rows, in));
+        }
+        Common.Frame.Builder builder = frame.toBuilder();
+        for (int r = 0; r < rows; r++) {
+            Common.Row.Builder row = Common.Row.newBuilder();
+            for (Common.TypedValue[] column : values) {
+                row.addValue(scalar(column[r]));
+            }
+            builder.addRows(row);
+        }
+        return builder.build();
+    }
+
+    private static Common.ColumnValue scalar(Common.TypedValue value) {
+        return Common.ColumnValue.newBuilder().setScalarValue(value).build();
+    }
+
+    private static void encodeColumn(List<Common.TypedValue> values, DataOutputStream out) throws IOException {
+        // Nulls are all alike, and are kept as one protobuf value and a bitmap
+        Common.TypedValue nullValue = null;
+        List<Common.TypedValue> nonNull = new ArrayList<>(values.size());
+        for (Common.TypedValue value : values) {
+            if (!value.getNull()) {
+                nonNull.add(value);
+            } else if (nullValue == null) {
+                nullValue = value;
+            } else if (!value.equals(nullValue)) {
+                writeRaw(values, out);
+                return;
+            }
+        }
+        Common.Rep rep = nonNull.isEmpty() ? Common.Rep.NULL : nonNull.get(0).getType();
+        byte kind = kind(rep, nonNull);
+        if (kind == RAW) {
+            writeRaw(values, out);
+            return;
+        }
+        out.writeByte(kind);
+        writeVarLong(out, rep.getNumber());
+        if (nullValue == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            byte[] bytes = nullValue.toByteArray();
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+            BitWriter bitmap = new BitWriter(out);
+            for (Common.TypedValue value : values) {
+                bitmap.write(value.getNull() ? 1 : 0, 1);
+            }
+            bitmap.flush();
+        }
+        switch (kind) {
+            case DICTIONARY:
+                writeStrings(nonNull, out);
+                break;
+            case NUMBER:
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                for (Common.TypedValue value : nonNull) {
+                    min = Math.min(min, value.getNumberValue());
+                    max = Math.max(max, value.getNumberValue());
+                }
+                int width = nonNull.isEmpty() ? 0 : bits(max - min);
+                out.writeLong(min);
+                out.writeByte(width);
+                BitWriter packed = new BitWriter(out);
+                for (Common.TypedValue value : nonNull) {
+                    packed.write(value.getNumberValue() - min, width);
+                }
+                packed.flush();
+                break;
+            case BOOLEAN:
+                BitWriter bits = new BitWriter(out);
+                for (Common.TypedValue value : nonNull) {
+                    bits.write(value.getBoolValue() ? 1 : 0, 1);
+                }
+                bits.flush();
+                break;
+            default:
+                for (Common.TypedValue value : nonNull) {
+                    out.writeDouble(value.getDoubleValue());
+                }
+                break;
+        }
+    }
+
+    // The first encoding that gives every value back exactly, or RAW
+    private static byte kind(Common.Rep rep, List<Common.TypedValue> values) {
+        if (values.isEmpty()) {
+            return NUMBER;
+        }
+        Common.TypedValue first = values.get(0);
+        byte kind = !first.getStringValue().isEmpty() || rep == Common.Rep.STRING ? DICTIONARY
+            : first.getBoolValue() || rep == Common.Rep.BOOLEAN || rep == Common.Rep.PRIMITIVE_BOOLEAN ? BOOLEAN
+            : first.getDoubleValue() != 0 || rep == Common.Rep.DOUBLE || rep == Common.Rep.PRIMITIVE_DOUBLE
+                || rep == Common.Rep.FLOAT || rep == Common.Rep.PRIMITIVE_FLOAT ? DOUBLE
+            : NUMBER;
+        for (Common.TypedValue value : values) {
+            if (!value.equals(value(kind, rep, value))) {
+                return RAW;
+            }
+        }
+        return kind;
+    }
+
+    // The value as the decoder builds it from what the encoding keeps
+    private static Common.TypedValue value(byte kind, Common.Rep rep, Common.TypedValue value) {
+        Common.TypedValue.Builder builder = Common.TypedValue.newBuilder().setType(rep);
+        switch (kind) {
+            case DICTIONARY:
+                return builder.setStringValue(value.getStringValue()).build();
+            case BOOLEAN:
+                return builder.setBoolValue(value.getBoolValue()).build();
+            case DOUBLE:
+                return builder.setDoubleValue(value.getDoubleValue()).build();
+            default:
+                return builder.setNumberValue(value.getNumberValue()).build();
+        }
+    }
+
+    private static void writeStrings(List<Common.TypedValue> values, DataOutputStream out) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] indexes = new int[values.size()];
+        int runs = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            String s = values.get(i).getStringValue();
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = dictionary.size();
+                ids.put(s, id);
+                dictionary.add(s);
+            }
+            indexes[i] = id;
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                runs++;
+            }
+        }
+        writeVarLong(out, dictionary.size());
+        for (String s : dictionary) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+        int width = bits(dictionary.size() - 1);
+        // Runs cost about two values each; worth it when values repeat in runs
+        boolean useRuns = 2L * runs * (width + 8) < (long) indexes.length * width;
+        out.writeBoolean(useRuns);
+        if (useRuns) {
+            writeVarLong(out, runs);
+            for (int i = 0; i < indexes.length;) {
+                int j = i;
+                while (j < indexes.length && indexes[j] == indexes[i]) {
+                    j++;
+                }
+                writeVarLong(out, indexes[i]);
+                writeVarLong(out, j - i);
+                i = j;
+            }
+        } else {
+            BitWriter packed = new BitWriter(out);
+            for (int index : indexes) {
+                packed.write(index, width);
+            }
+            packed.flush();
+        }
+    }
+
+    private static void writeRaw(List<Common.TypedValue> values, DataOutputStream out) throws IOException {
+        out.writeByte(RAW);
+        for (Common.TypedValue value : values) {
+            byte[] bytes = value.toByteArray();
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Common.TypedValue[] decodeColumn(int rows, DataInputStream in) throws IOException {
+        Common.TypedValue[] values = new Common.TypedValue[rows];
+        byte kind = in.readByte();
+        if (kind == RAW) {
+            for (int r = 0; r < rows; r++) {
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                values[r] = Common.TypedValue.parseFrom(bytes);
+            }
+            return values;
+        }
+        Common.Rep rep = Common.Rep.forNumber((int) readVarLong(in));
+        int nonNull = rows;
+        if (in.readBoolean()) {
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            in.readFully(bytes);
+            Common.TypedValue nullValue = Common.TypedValue.parseFrom(bytes);
+            BitReader bitmap = new BitReader(in);
+            for (int r = 0; r < rows; r++) {
+                if (bitmap.read(1) == 1) {
+                    values[r] = nullValue;
+                    nonNull--;
+                }
+            }
+        }
+        Common.TypedValue.Builder builder = Common.TypedValue.newBuilder().setType(rep);
+        switch (kind) {
+            case DICTIONARY:
+                Common.TypedValue[] dictionary = new Common.TypedValue[(int) readVarLong(in)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    byte[] bytes = new byte[(int) readVarLong(in)];
+                    in.readFully(bytes);
+                    dictionary[i] = builder.setStringValue(new String(bytes, StandardCharsets.UTF_8)).build();
+                }
+                int width = bits(dictionary.length - 1);
+                if (in.readBoolean()) {
+                    long runs = readVarLong(in);
+                    int r = 0;
+                    for (long run = 0; run < runs; run++) {
+                        Common.TypedValue value = dictionary[(int) readVarLong(in)];
+                        for (long n = readVarLong(in); n > 0; n--) {
+                            r = next(values, r);
+                            values[r++] = value;
+                        }
+                    }
+                } else {
+                    BitReader packed = new BitReader(in);
+                    for (int i = 0, r = 0; i < nonNull; i++) {
+                        r = next(values, r);
+                        values[r++] = dictionary[(int) packed.read(width)];
+                    }
+                }
+                break;
+            case NUMBER:
+                long min = in.readLong();
+                int bits = in.readByte();
+                BitReader numbers = new BitReader(in);
+                for (int i = 0, r = 0; i < nonNull; i++) {
+                    r = next(values, r);
+                    values[r++] = builder.setNumberValue(min + numbers.read(bits)).build();
+                }
+                break;
+            case BOOLEAN:
+                BitReader booleans = new BitReader(in);
+                for (int i = 0, r = 0; i < nonNull; i++) {
+                    r = next(values, r);
+                    values[r++] = builder.setBoolValue(booleans.read(1) == 1).build();
+                }
+                break;
+            case DOUBLE:
+                for (int i = 0, r = 0; i < nonNull; i++) {
+                    r = next(values, r);
+                    values[r++] = builder.setDoubleValue(in.readDouble()).build();
+                }
+                break;
+            default:
+                throw new IOException("Unknown column encoding " + kind);
+        }
+        return values;
+    }
+
+    // The next row from r that is not null
+    private static int next(Common.TypedValue[] values, int r) {
+        while (values[r] != null) {
+            r++;
+        }
+        return r;
+    }
+
+    // Bits to hold values from 0 to max, as unsigned
+    private static int bits(long max) {
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    /** The encodings listed in a request's {@link #FRAMES_HEADER}, in lower case; empty if none. */
+    static Set<String> requested(String header) {
+        if (header == null) {
+            return Collections.emptySet();
+        }
+        Set<String> encodings = new HashSet<>();
+        for (String encoding : header.split(",")) {
+            encodings.add(encoding.trim().toLowerCase(Locale.ROOT));
+        }
+        return encodings;
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] gunzip(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return readFully(in);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) >= 0;) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /** Writes values of up to 64 bits, least significant bit first, ending on a byte boundary at flush. */
+    private static final class BitWriter {
+        private final OutputStream out;
+        private long buffer;
+        private int count;
+
+        BitWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(long value, int width) throws IOException {
+            for (int written = 0; written < width;) {
+                int n = Math.min(width - written, 64 - count);
+                long bits = n == 64 ? value : (value >>> written) & ((1L << n) - 1);
+                buffer |= bits << count;
+                count += n;
+                written += n;
+                if (count == 64) {
+                    drain(8);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            drain((count + 7) / 8);
+        }
+
+        private void drain(int bytes) throws IOException {
+            for (int i = 0; i < bytes; i++) {
+                out.write((int) (buffer >>> (8 * i)));
+            }
+            buffer = 0;
+            count = 0;
+        }
+    }
+
+    /** Reads what a {@link BitWriter} wrote. */
+    private static final class BitReader {
+        private final DataInputStream in;
+        private long buffer;
+        private int count;
+
+        BitReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        long read(int width) throws IOException {
+            long value = 0;
+            for (int got = 0; got < width;) {
+                if (count == 0) {
+                    buffer = in.readUnsignedByte();
+                    count = 8;
+                }
+                int n = Math.min(width - got, count);
+                value |= (buffer & ((1L << n) - 1)) << got;
+                buffer >>>= n;
+                count -= n;
+                got += n;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Avatica HTTP client that asks for the encodings named in its URL's
+     * query string, {@code frames=columnar} and {@code compression=gzip},
+     * and hands the driver protobuf responses.
+     */
+    public static class Client implements AvaticaHttpClient {
+        private final URL url;
+        private final Frames frames;
+        private final Compression compression;
+
+        public Client(URL url) {
+            this.url = url;
+            Map<String, String> query = new HashMap<>();
+            if (url.getQuery() != null) {
+                for (String parameter : url.getQuery().split("&")) {
+                    int eq = parameter.indexOf('=');
+                    if (eq > 0) {
+                        query.put(parameter.substring(0, eq), parameter.substring(eq + 1).toUpperCase(Locale.ROOT));
+                    }
+                }
+            }
+            this.frames = Frames.valueOf(query.getOrDefault("frames", "PROTOBUF"));
+            this.compression = Compression.valueOf(query.getOrDefault("compression", "NONE"));
+        }
+
+        @Override
+        public byte[] send(byte[] request) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                List<String> encodings = new ArrayList<>(2);
+                if (frames == Frames.COLUMNAR) {
+                    encodings.add("columnar");
+                }
+                if (compression == Compression.GZIP) {
+                    encodings.add("gzip");
+                }
+                if (!encodings.isEmpty()) {
+                    connection.setRequestProperty(FRAMES_HEADER, String.join(", ", encodings));
+                }
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(request);
+                }
+                int status = connection.getResponseCode();
+                // Avatica reports errors as responses with status 500
+                if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    throw new IOException("HTTP " + status + " from " + url);
+                }
+                byte[] response;
+                try (InputStream in = status == HttpURLConnection.HTTP_OK
+                         ? connection.getInputStream() : connection.getErrorStream()) {
+                    response = readFully(in);
+                }
+                if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                    response = gunzip(response);
+                }
+                if ("columnar".equals(connection.getHeaderField(FRAMES_HEADER))) {
+                    response = decode(response);
+                }
+                return response;
+            } catch (IOException e) {
+                throw new RuntimeException("Request to " + url + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections and statements clients hold open on the server, kept
+ * within bounds so that those of abandoned editor tabs do not linger with
+ * their cursors.
+ *
+ * <p>There are at most {@link #setMaxConnections so many} connections and
+ * {@link #setMaxStatements so many} statements, the least recently used
+ * being evicted beyond that; and a connection or statement idle for longer
+ * than {@link #setConnectionIdleMillis its time} is evicted. Using a
+ * statement uses its connection, and evicting a connection evicts its
+ * statements. Idle handles are found whenever the cache is next used, and
+ * by {@link #sweep()}, which a daemon thread runs every
+ * 30 seconds so that they go even when no request comes.
+ * {@link EvictionListener Listeners} are told of each eviction after it;
+ * {@link InstrumentedJdbcMeta} closes the evicted statement or connection
+ * and frees its cursors.
+ *
+ * <p>A client, named by its address rather than by anything it says of
+ * itself like the {@code user} property, may hold
+ * {@link #setMaxClientConnections so many} connections and
+ * {@link #setMaxClientStatements so many} statements; one more is refused.
+ * A statement is refused too if its connection has left the cache.
+ *
+ * <p>{@link #getConnections()} and {@link #getStatements()} list the open
+ * handles, with the bytes their cursors hold as {@link AdaptiveFrames}
+ * estimates them; {@link #toString()} sums them up by client, and is the
+ * {@code handles} operation of the {@link ServerMetrics} MBean. It names
+ * connection ids, so it is kept off the HTTP port.
+ */
+public class HandleCache {
+    // As JdbcMeta's own caches
+    static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    static final int DEFAULT_MAX_STATEMENTS = 10000;
+    static final long DEFAULT_CONNECTION_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    static final long DEFAULT_STATEMENT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final int DEFAULT_MAX_CLIENT_CONNECTIONS = 50;
+    static final int DEFAULT_MAX_CLIENT_STATEMENTS = 1000;
+    static final long SWEEP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final HandleCache INSTANCE = new HandleCache(AdaptiveFrames.get());
+
+    /** Why a handle was evicted. */
+    public enum Cause {
+        SIZE, IDLE
+    }
+
+    /** Told of each handle evicted, after it has left the cache. */
+    public interface EvictionListener {
+        void evicted(Handle handle, Cause cause);
+    }
+
+    private final AdaptiveFrames frames;
+    private final List<EvictionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "handle-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // In order of use, least recent first; statements by connection and statement id
+    private final LinkedHashMap<String, Handle> connections = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Handle> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> clientConnections = new HashMap<>();
+    private final Map<String, Integer> clientStatements = new HashMap<>();
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxStatements = DEFAULT_MAX_STATEMENTS;
+    private long connectionIdleMillis = DEFAULT_CONNECTION_IDLE_MILLIS;
+    private long statementIdleMillis = DEFAULT_STATEMENT_IDLE_MILLIS;
+    private int maxClientConnections = DEFAULT_MAX_CLIENT_CONNECTIONS;
+    private int maxClientStatements = DEFAULT_MAX_CLIENT_STATEMENTS;
+    private long sizeEvictions;
+    private long idleEvictions;
+    private long refusals;
+
+    HandleCache(AdaptiveFrames frames) {
+        this.frames = frames;
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                // Try again next time, rather than stop sweeping
+            }
+        }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** The handles of every server in the process. */
+    public static HandleCache get() {
+        return INSTANCE;
+    }
+
+    public void addListener(EvictionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(EvictionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Records a connection just opened; throws if its client holds its quota of connections. */
+    void opened(String connectionId, String client) {
+        Map<Handle, Cause> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            int open = clientConnections.getOrDefault(client, 0);
+            if (open >= maxClientConnections) {
+                refusals++;
+                throw new IllegalStateException(String.format(Locale.ROOT,
+                    "Client %s has %d connections open, its quota", client, open));
+            }
+            connections.put(connectionId, new Handle(connectionId, -1, client, null));
+            clientConnections.merge(client, 1, Integer::sum);
+            evict(evicted);
+        }
+        evicted(evicted);
+    }
+
+    /**
+     * Records a statement just created; throws if its client holds its quota
+     * of statements, or its connection is not in the cache.
+     */
+    void created(String connectionId, int statementId) {
+        Map<Handle, Cause> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            Handle connection = connections.get(connectionId);
+            if (connection == null) {
+                // Evicted meanwhile; a statement kept outside the cache would have no bound
+                throw new IllegalStateException("Connection " + connectionId + " is not open");
+            }
+            int open = clientStatements.getOrDefault(connection.client, 0);
+            if (open >= maxClientStatements) {
+                refusals++;
+                throw new IllegalStateException(String.format(Locale.ROOT,
+                    "Client %s has %d statements open, its quota", connection.client, open));
+            }
+            connection.used = System.nanoTime();
+            statements.put(key(connectionId, statementId),
+                new Handle(connectionId, statementId, connection.client, connection));
+            connection.statements.add(statementId);
+            clientStatements.merge(connection.client, 1, Integer::sum);
+            evict(evicted);
+        }
+        evicted(evicted);
+    }
+
+    /** Records a use of a connection. */
+    void used(String connectionId) {
+        Map<Handle, Cause> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            Handle connection = connections.get(connectionId);
+            if (connection != null) {
+                connection.used = System.nanoTime();
+            }
+            evict(evicted);
+        }
+        evicted(evicted);
+    }
+
+    /** Records a use of a statement, and so of its connection. */
+    void used(String connectionId, int statementId) {
+        Map<Handle, Cause> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            Handle statement = statements.get(key(connectionId, statementId));
+            if (statement != null) {
+                statement.used = now;
+            }
+            Handle connection = connections.get(connectionId);
+            if (connection != null) {
+                connection.used = now;
+            }
+            evict(evicted);
+        }
+        evicted(evicted);
+    }
+
+    /** Forgets a closed statement. */
+    synchronized void closed(String connectionId, int statementId) {
+        Handle statement = statements.remove(key(connectionId, statementId));
+        if (statement != null) {
+            forget(statement);
+        }
+    }
+
+    /** Forgets a closed connection and its statements; returns the ids of the statements. */
+    synchronized List<Integer> closed(String connectionId) {
+        Handle connection = connections.remove(connectionId);
+        if (connection == null) {
+            return new ArrayList<>();
+        }
+        List<Integer> ids = new ArrayList<>(connection.statements);
+        remove(connection, null, null);
+        return ids;
+    }
+
+    /** Evicts the handles idle for longer than their time, or beyond the bounds. */
+    public void sweep() {
+        Map<Handle, Cause> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            evict(evicted);
+        }
+        evicted(evicted);
+    }
+
+    // Under the lock: evicts idle handles, then the least recently used beyond the bounds
+    private void evict(Map<Handle, Cause> evicted) {
+        long now = System.nanoTime();
+        long statementIdle = TimeUnit.MILLISECONDS.toNanos(statementIdleMillis);
+        for (Iterator<Handle> eldest = statements.values().iterator(); eldest.hasNext();) {
+            Handle statement = eldest.next();
+            if (now - statement.used <= statementIdle) {
+                break;
+            }
+            eldest.remove();
+            forget(statement);
+            evicted.put(statement, Cause.IDLE);
+            idleEvictions++;
+        }
+        long connectionIdle = TimeUnit.MILLISECONDS.toNanos(connectionIdleMillis);
+        for (Iterator<Handle> eldest = connections.values().iterator(); eldest.hasNext();) {
+            Handle connection = eldest.next();
+            if (now - connection.used <= connectionIdle) {
+                break;
+            }
+            eldest.remove();
+            remove(connection, evicted, Cause.IDLE);
+            idleEvictions++;
+        }
+        for (Iterator<Handle> eldest = statements.values().iterator();
+                statements.size() > maxStatements && eldest.hasNext();) {
+            Handle statement = eldest.next();
+            eldest.remove();
+            forget(statement);
+            evicted.put(statement, Cause.SIZE);
+            sizeEvictions++;
+        }
+        for (Iterator<Handle> eldest = connections.values().iterator();
+                connections.size() > maxConnections && eldest.hasNext();) {
+            Handle connection = eldest.next();
+            eldest.remove();
+            remove(connection, evicted, Cause.SIZE);
+            sizeEvictions++;
+        }
+    }
+
+    // Under the lock: removes a connection's statements, and counts it out of its client
+    private void remove(Handle connection, Map<Handle, Cause> evicted, Cause cause) {
+        for (int id : connection.statements) {
+            Handle statement = statements.remove(key(connection.connectionId, id));
+            if (statement != null) {
+                decrement(clientStatements, statement.client);
+                if (evicted != null) {
+                    // Statements first, so that they are closed before their connection
+                    evicted.put(statement, cause);
+                }
+            }
+        }
+        connection.statements.clear();
+        decrement(clientConnections, connection.client);
+        if (evicted != null) {
+            evicted.put(connection, cause);
+        }
+    }
+
+    // Under the lock: removes a statement from its connection and client
+    private void forget(Handle statement) {
+        statement.connection.statements.remove(statement.statementId);
+        decrement(clientStatements, statement.client);
+    }
+
+    private static void decrement(Map<String, Integer> counts, String client) {
+        counts.computeIfPresent(client, (c, n) -> n == 1 ? null : n - 1);
+    }
+
+    private void evicted(Map<Handle, Cause> evicted) {
+        evicted.forEach((handle, cause) -> {
+            for (EvictionListener listener : listeners) {
+                try {
+                    listener.evicted(handle, cause);
+                } catch (RuntimeException e) {
+                    // The handle has left the cache regardless; the others still hear of theirs
+                }
+            }
+        });
+    }
+
+    private static String key(String connectionId, int statementId) {
+        return connectionId + '/' + statementId;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized void setMaxStatements(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    public synchronized void setConnectionIdleMillis(long connectionIdleMillis) {
+        this.connectionIdleMillis = connectionIdleMillis;
+    }
+
+    public synchronized void setStatementIdleMillis(long statementIdleMillis) {
+        this.statementIdleMillis = statementIdleMillis;
+    }
+
+    public synchronized void setMaxClientConnections(int maxClientConnections) {
+        this.maxClientConnections = maxClientConnections;
+    }
+
+    public synchronized void setMaxClientStatements(int maxClientStatements) {
+        this.maxClientStatements = maxClientStatements;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized int getMaxStatements() {
+        return maxStatements;
+    }
+
+    public synchronized long getConnectionIdleMillis() {
+        return connectionIdleMillis;
+    }
+
+    public synchronized long getStatementIdleMillis() {
+        return statementIdleMillis;
+    }
+
+    public synchronized int getMaxClientConnections() {
+        return maxClientConnections;
+    }
+
+    public synchronized int getMaxClientStatements() {
+        return maxClientStatements;
+    }
+
+    /** Open connections, least recently used first. */
+    public synchronized List<Handle> getConnections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    /** Open statements, least recently used first. */
+    public synchronized List<Handle> getStatements() {
+        return new ArrayList<>(statements.values());
+    }
+
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    public synchronized int getStatementCount() {
+        return statements.size();
+    }
+
+    /** Bytes held by the cursors of all open statements. */
+    public long getHeldBytes() {
+        long bytes = 0;
+        for (Handle statement : getStatements()) {
+            bytes += statement.getHeldBytes();
+        }
+        return bytes;
+    }
+
+    public synchronized long getEvictions() {
+        return sizeEvictions + idleEvictions;
+    }
+
+    public synchronized long getIdleEvictions() {
+        return idleEvictions;
+    }
+
+    /** Connections and statements refused because their client held its quota. */
+    public synchronized long getRefusals() {
+        return refusals;
+    }
+
+    /** Open handles and the bytes they hold by client, then each connection. */
+    @Override
+    public String toString() {
+        List<Handle> connections = getConnections();
+        Map<String, long[]> clients = new TreeMap<>();
+        for (Handle connection : connections) {
+            long[] totals = clients.computeIfAbsent(connection.client, c -> new long[4]);
+            totals[0]++;
+            totals[1] += connection.getStatementCount();
+            totals[2] += connection.getHeldBytes();
+            totals[3] += connection.getMaxHeldBytes();
+        }
+        StringBuilder out = new StringBuilder();
+        clients.forEach((client, totals) -> out.append(String.format(Locale.ROOT,
+            "%s: %d connections, %d statements, holding %d bytes (max %d)%n",
+            client, totals[0], totals[1], totals[2], totals[3])));
+        for (Handle connection : connections) {
+            out.append(connection).append(System.lineSeparator());
+        }
+        return out.toString();
+    }
+
+    /** An open connection or statement. */
+    public final class Handle {
+        private final String connectionId;
+        private final int statementId;
+        private final String client;
+        // The statement's connection, or null for a connection
+        private final Handle connection;
+        private final long opened = System.nanoTime();
+        private volatile long used = opened;
+        // Ids of a connection's statements
+        private final Set<Integer> statements;
+
+        Handle(String connectionId, int statementId, String client, Handle connection) {
+            this.connectionId = connectionId;
+            this.statementId = statementId;
+            this.client = client;
+            this.connection = connection;
+            this.statements = connection == null ? ConcurrentHashMap.newKeySet() : Collections.emptySet();
+        }
+
+        public String getConnectionId() {
+            return connectionId;
+        }
+
+        /** Id of the statement, or -1 for a connection. */
+        public int getStatementId() {
+            return statementId;
+        }
+
+        public boolean isStatement() {
+            return connection != null;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public long getAgeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - opened);
+        }
+
+        public long getIdleMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - used);
+        }
+
+        /** Open statements of a connection. */
+        public int getStatementCount() {
+            return statements.size();
+        }
+
+        /** Bytes held now by the statement's cursor, or by the cursors of the connection's statements. */
+        public long getHeldBytes() {
+            long bytes = 0;
+            for (AdaptiveFrames.Cursor cursor : cursors()) {
+                bytes += cursor.getHeldBytes();
+            }
+            return bytes;
+        }
+
+        /** The most bytes the cursors have held at once, each. */
+        public long getMaxHeldBytes() {
+            long bytes = 0;
+            for (AdaptiveFrames.Cursor cursor : cursors()) {
+                bytes += cursor.getMaxHeldBytes();
+            }
+            return bytes;
+        }
+
+        private List<AdaptiveFrames.Cursor> cursors() {
+            List<AdaptiveFrames.Cursor> cursors = new ArrayList<>();
+            for (int id : isStatement() ? Set.of(statementId) : statements) {
+                AdaptiveFrames.Cursor cursor = frames.find(connectionId, id);
+                if (cursor != null) {
+                    cursors.add(cursor);
+                }
+            }
+            return cursors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (%s): %s, idle %d ms, holding %d bytes (max %d)",
+                isStatement() ? key(connectionId, statementId) : connectionId, client,
+                isStatement() ? "statement" : getStatementCount() + " statements",
+                getIdleMillis(), getHeldBytes(), getMaxHeldBytes());
+        }
+    }
+}
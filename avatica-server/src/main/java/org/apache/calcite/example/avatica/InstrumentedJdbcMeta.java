@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.avatica.MissingResultsException;
+import org.apache.calcite.avatica.NoSuchStatementException;
+import org.apache.calcite.avatica.jdbc.JdbcMeta;
+import org.apache.calcite.avatica.remote.TypedValue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+/**
+ * {@link JdbcMeta} that records into {@link ServerMetrics} the time statements
+ * spend executing (their preparation is timed separately), the rows of each
+ * frame, and the statements executing at any moment; and marks in the
+ * thread's {@link ServerMetrics.Trace} where execution starts and ends, so
+ * that {@link ExecutionHandler} can time deserialisation and serialisation
+ * around it.
+ *
+ * <p>Frames are sized by {@link AdaptiveFrames}, which the trace also
+ * carries to the handler to learn the protobuf size of each frame.
+ *
+ * <p>Connections and statements are kept in {@link HandleCache}, which
+ * bounds them and holds each client to its quota; the meta closes the
+ * handles the cache evicts, and with them their cursors. Closing a
+ * connection closes its statements at once, rather than when they expire.
+ */
+class InstrumentedJdbcMeta extends JdbcMeta {
+    private final ServerMetrics metrics;
+    private final AdaptiveFrames frames;
+    private final HandleCache handles;
+
+    InstrumentedJdbcMeta(String url, Properties info, ServerMetrics metrics, AdaptiveFrames frames,
+            HandleCache handles) throws SQLException {
+        super(url, info, metrics);
+        this.metrics = metrics;
+        this.frames = frames;
+        this.handles = handles;
+        handles.addListener(this::evicted);
+    }
+
+    @Override
+    public void openConnection(ConnectionHandle ch, Map<String, String> info) {
+        super.openConnection(ch, info);
+        // The address the request came from; the user property is the client's to choose
+        String client = ServerMetrics.trace().client;
+        try {
+            handles.opened(ch.id, client != null ? client : "local");
+        } catch (IllegalStateException e) {
+            super.closeConnection(ch);
+            throw e;
+        }
+    }
+
+    @Override
+    public StatementHandle createStatement(ConnectionHandle ch) {
+        return created(super.createStatement(ch));
+    }
+
+    @Override
+    public StatementHandle prepare(ConnectionHandle ch, String sql, long maxRowCount) {
+        ServerMetrics.Trace trace = enter();
+        try {
+            return created(super.prepare(ch, sql, maxRowCount));
+        } finally {
+            exit(trace, false);
+        }
+    }
+
+    @Override
+    public ExecuteResult prepareAndExecute(StatementHandle h, String sql, long maxRowCount, int maxRowsInFirstFrame,
+            PrepareCallback callback) throws NoSuchStatementException {
+        used(h);
+        ServerMetrics.Trace trace = enter();
+        try {
+            int rows = firstFrame(trace, h, maxRowsInFirstFrame);
+            ExecuteResult result = super.prepareAndExecute(h, sql, maxRowCount, rows, callback);
+            frames(trace, result);
+            return result;
+        } finally {
+            exit(trace, true);
+        }
+    }
+
+    @Override
+    public ExecuteResult execute(StatementHandle h, List<TypedValue> parameterValues, int maxRowsInFirstFrame)
+            throws NoSuchStatementException {
+        used(h);
+        ServerMetrics.Trace trace = enter();
+        try {
+            int rows = firstFrame(trace, h, maxRowsInFirstFrame);
+            ExecuteResult result = super.execute(h, parameterValues, rows);
+            frames(trace, result);
+            return result;
+        } finally {
+            exit(trace, true);
+        }
+    }
+
+    @Override
+    public Frame fetch(StatementHandle h, long offset, int fetchMaxRowCount)
+            throws NoSuchStatementException, MissingResultsException {
+        used(h);
+        ServerMetrics.Trace trace = enter();
+        try {
+            AdaptiveFrames.Cursor cursor = frames.cursor(h.connectionId, h.id);
+            trace.cursor = cursor;
+            int rows = cursor.rows(fetchMaxRowCount, trace.metaEnter);
+            if (cursor.done) {
+                trace.frameRows = 0;
+                return new Frame(offset, true, Collections.emptyList());
+            }
+            if (frames.isStreaming()) {
+                trace.frameRows = 0;
+                return new Frame(offset, false, stream(h, offset, rows, cursor, trace));
+            }
+            Frame frame = super.fetch(h, offset, rows);
+            frame(trace, frame);
+            return frame;
+        } finally {
+            exit(trace, true);
+        }
+    }
+
+    @Override
+    public void closeStatement(StatementHandle h) {
+        handles.closed(h.connectionId, h.id);
+        frames.close(h.connectionId, h.id);
+        super.closeStatement(h);
+    }
+
+    @Override
+    public void closeConnection(ConnectionHandle ch) {
+        for (int id : handles.closed(ch.id)) {
+            super.closeStatement(new StatementHandle(ch.id, id, null));
+        }
+        frames.closeConnection(ch.id);
+        super.closeConnection(ch);
+    }
+
+    // Every call on a connection looks it up here
+    @Override
+    public Connection getConnection(String id) throws SQLException {
+        handles.used(id);
+        return super.getConnection(id);
+    }
+
+    // Uses a statement, and so its connection, in the handle cache and in JdbcMeta's
+    // connection cache, which otherwise sees only calls on the connection itself
+    private void used(StatementHandle h) {
+        handles.used(h.connectionId, h.id);
+        try {
+            super.getConnection(h.connectionId);
+        } catch (SQLException | RuntimeException e) {
+            // Gone; the call on the statement reports it
+        }
+    }
+
+    // Registers a statement with the cache, or closes it if its client is over its quota or its connection gone
+    private StatementHandle created(StatementHandle h) {
+        try {
+            handles.created(h.connectionId, h.id);
+        } catch (IllegalStateException e) {
+            super.closeStatement(h);
+            throw e;
+        }
+        return h;
+    }
+
+    private void evicted(HandleCache.Handle handle, HandleCache.Cause cause) {
+        if (handle.isStatement()) {
+            closeStatement(new StatementHandle(handle.getConnectionId(), handle.getStatementId(), null));
+        } else {
+            closeConnection(new ConnectionHandle(handle.getConnectionId()));
+        }
+    }
+
+    // Rows of the first frame of a statement's new result set
+    private int firstFrame(ServerMetrics.Trace trace, StatementHandle h, int requested) {
+        frames.close(h.connectionId, h.id);
+        AdaptiveFrames.Cursor cursor = frames.cursor(h.connectionId, h.id);
+        trace.cursor = cursor;
+        return cursor.rows(requested, trace.metaEnter);
+    }
+
+    /**
+     * Rows read from the statement's result set as the frame is serialised,
+     * a batch at a time. The frame is not marked done, since that is known
+     * only at the end; the next fetch returns an empty, done frame.
+     */
+    private Iterable<Object> stream(StatementHandle h, long offset, int rows, AdaptiveFrames.Cursor cursor,
+            ServerMetrics.Trace trace) {
+        return () -> new Iterator<Object>() {
+            private Iterator<Object> batch = Collections.emptyIterator();
+            private int read;
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext()) {
+                    if (cursor.done || read >= rows) {
+                        return false;
+                    }
+                    Frame frame;
+                    try {
+                        frame = InstrumentedJdbcMeta.super.fetch(h, offset + read,
+                            Math.min(AdaptiveFrames.STREAM_BATCH_ROWS, rows - read));
+                    } catch (NoSuchStatementException | MissingResultsException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    cursor.done = frame.done;
+                    batch = frame.rows.iterator();
+                    if (!batch.hasNext() && !cursor.done) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                read++;
+                trace.frameRows++;
+                return batch.next();
+            }
+        };
+    }
+
+    private ServerMetrics.Trace enter() {
+        ServerMetrics.Trace trace = ServerMetrics.trace();
+        trace.prepareNanos = 0;
+        trace.metaEnter = System.nanoTime();
+        metrics.statementsExecuting.increment();
+        return trace;
+    }
+
+    private void exit(ServerMetrics.Trace trace, boolean executed) {
+        trace.metaExit = System.nanoTime();
+        metrics.statementsExecuting.decrement();
+        if (executed) {
+            metrics.execute.record(trace.metaExit - trace.metaEnter - trace.prepareNanos);
+        }
+    }
+
+    private void frames(ServerMetrics.Trace trace, ExecuteResult result) {
+        for (MetaResultSet resultSet : result.resultSets) {
+            if (resultSet.firstFrame != null) {
+                frame(trace, resultSet.firstFrame);
+            }
+        }
+    }
+
+    private void frame(ServerMetrics.Trace trace, Frame frame) {
+        if (frame.done) {
+            trace.cursor.done = true;
+        }
+        // JdbcMeta's frames are lists
+        if (frame.rows instanceof Collection) {
+            trace.frameRows = Math.max(trace.frameRows, 0) + ((Collection<?>) frame.rows).size();
+            trace.cursor.hold(trace.frameRows);
+        }
+    }
+}
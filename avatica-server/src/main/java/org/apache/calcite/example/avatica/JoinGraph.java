@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.example.steiner.SteinerTreeKruskal;
+import org.apache.calcite.rel.RelReferentialConstraint;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Table;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.mapping.IntPair;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Join graph over the tables of one schema. Tables are nodes and every key
+ * relationship is an edge carrying its join columns. Relationships come from
+ * the tables' statistics (referential constraints and keys) and, for tables
+ * that declare none, from the convention that the first column is the key
+ * and other tables join to it through a column of the same name.
+ *
+ * <p>Join trees come from the Steiner engine ({@link SteinerTreeKruskal}),
+ * which keeps a graph of the same tables and caches the tree of each table set.
+ *
+ * <p>Instances are not modified after {@link #of}; {@link JoinPathService}
+ * swaps in a new graph when the schema changes.
+ */
+final class JoinGraph {
+    /** Equi-join from a table already in the query to the next one. */
+    static final class Join {
+        final String leftTable;
+        final String leftColumn;
+        final String rightTable;
+        final String rightColumn;
+
+        Join(String leftTable, String leftColumn, String rightTable, String rightColumn) {
+            this.leftTable = leftTable;
+            this.leftColumn = leftColumn;
+            this.rightTable = rightTable;
+            this.rightColumn = rightColumn;
+        }
+
+        Join reverse() {
+            return new Join(rightTable, rightColumn, leftTable, leftColumn);
+        }
+
+        @Override
+        public String toString() {
+            return leftTable + "." + leftColumn + " = " + rightTable + "." + rightColumn;
+        }
+    }
+
+    private final String schemaName;
+    private final List<String> tables;
+    private final Map<String, Integer> ids;
+    private final List<Map<Integer, Join>> adjacency;  // Per table: neighbour id -> join from this table
+    private final SteinerTreeKruskal.Graph steiner;  // The same tables, one unit-weight edge per join
+
+    private JoinGraph(String schemaName, List<String> tables) {
+        this.schemaName = schemaName;
+        this.tables = tables;
+        this.ids = new HashMap<>();
+        this.adjacency = new ArrayList<>();
+        this.steiner = new SteinerTreeKruskal.Graph();
+        for (int i = 0; i < tables.size(); i++) {
+            ids.put(tables.get(i), i);
+            adjacency.add(new LinkedHashMap<>());
+            steiner.addNode(tables.get(i));
+        }
+    }
+
+    /** Reads the tables of the given schema and infers their relationships. */
+    static JoinGraph of(String schemaName, SchemaPlus schema, JavaTypeFactory typeFactory) {
+        List<String> names = new ArrayList<>(new TreeSet<>(schema.getTableNames()));
+        JoinGraph graph = new JoinGraph(schemaName, names);
+        Map<String, List<String>> columns = new HashMap<>();
+        Map<String, Statistic> statistics = new HashMap<>();
+        for (String name : names) {
+            Table table = schema.getTable(name);
+            columns.put(name, table.getRowType(typeFactory).getFieldNames());
+            statistics.put(name, table.getStatistic());
+        }
+
+        // Declared foreign keys first, so they win over inferred ones
+        for (String name : names) {
+            List<RelReferentialConstraint> constraints = statistics.get(name).getReferentialConstraints();
+            if (constraints == null) continue;
+            for (RelReferentialConstraint constraint : constraints) {
+                List<String> target = constraint.getTargetQualifiedName();
+                String targetTable = target.get(target.size() - 1);
+                if (!columns.containsKey(targetTable) || constraint.getColumnPairs().isEmpty()) continue;
+                IntPair pair = constraint.getColumnPairs().get(0);
+                graph.add(new Join(name, columns.get(name).get(pair.source),
+                    targetTable, columns.get(targetTable).get(pair.target)));
+            }
+        }
+
+        // Then every other table holding a column named like a key column
+        for (String name : names) {
+            for (String key : keyColumns(columns.get(name), statistics.get(name))) {
+                for (String other : names) {
+                    if (!other.equals(name) && columns.get(other).contains(key)) {
+                        graph.add(new Join(other, key, name, key));
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+
+    private static List<String> keyColumns(List<String> columns, Statistic statistic) {
+        List<ImmutableBitSet> keys = statistic.getKeys();
+        if (keys == null || keys.isEmpty()) {
+            return columns.isEmpty() ? Collections.emptyList() : Collections.singletonList(columns.get(0));
+        }
+        List<String> result = new ArrayList<>();
+        for (ImmutableBitSet key : keys) {
+            if (key.cardinality() == 1) {
+                result.add(columns.get(key.nth(0)));
+            }
+        }
+        return result;
+    }
+
+    // Keeps the first relationship found between two tables
+    private void add(Join join) {
+        int left = ids.get(join.leftTable);
+        int right = ids.get(join.rightTable);
+        if (left != right && !adjacency.get(left).containsKey(right)) {
+            adjacency.get(left).put(right, join);
+            adjacency.get(right).put(left, join.reverse());
+            steiner.addEdge(join.leftTable, join.rightTable, join.toString());
+        }
+    }
+
+    List<String> tables() {
+        return tables;
+    }
+
+    int edgeCount() {
+        int count = 0;
+        for (Map<Integer, Join> joins : adjacency) {
+            count += joins.size();
+        }
+        return count / 2;
+    }
+
+    /**
+     * Returns the joins of a small tree connecting the given tables, ordered so
+     * that each join's left table is already part of the query. The tree is the
+     * engine's Steiner tree over hop counts, walked breadth-first from the first
+     * table by name.
+     */
+    List<Join> joinTree(Collection<String> requested) {
+        TreeSet<String> terminals = new TreeSet<>();
+        for (String name : requested) {
+            if (!ids.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown table: " + name);
+            }
+            terminals.add(name);
+        }
+        if (terminals.size() <= 1) {
+            return Collections.emptyList();
+        }
+        for (String name : terminals) {
+            if (!steiner.sameIsland(terminals.first(), name)) {
+                throw new IllegalArgumentException("No join path connects " + terminals);
+            }
+        }
+        SteinerTreeKruskal.SteinerResult tree = steiner.findSteinerResult(terminals);
+
+        List<Join> joins = new ArrayList<>();
+        Set<String> joined = new HashSet<>();
+        Deque<SteinerTreeKruskal.Node> queue = new ArrayDeque<>();
+        queue.add(steiner.getNode(terminals.first()));
+        joined.add(terminals.first());
+        while (!queue.isEmpty()) {
+            SteinerTreeKruskal.Node current = queue.poll();
+            for (SteinerTreeKruskal.Node neighbor : tree.getNeighbors(current)) {
+                if (joined.add(neighbor.getContent())) {
+                    joins.add(adjacency.get(ids.get(current.getContent())).get(ids.get(neighbor.getContent())));
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return joins;
+    }
+
+    /** Renders the join tree of the given tables as a SELECT over all their columns. */
+    String toSql(Collection<String> requested) {
+        List<Join> joins = joinTree(requested);
+        String first = joins.isEmpty() ? requested.iterator().next() : joins.get(0).leftTable;
+        if (!ids.containsKey(first)) {
+            throw new IllegalArgumentException("Unknown table: " + first);
+        }
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(table(first));
+        for (Join join : joins) {
+            sql.append("\nJOIN ").append(table(join.rightTable))
+                .append(" ON ").append(quote(join.leftTable)).append('.').append(quote(join.leftColumn))
+                .append(" = ").append(quote(join.rightTable)).append('.').append(quote(join.rightColumn));
+        }
+        return sql.toString();
+    }
+
+    private String table(String name) {
+        return quote(schemaName) + "." + quote(name);
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
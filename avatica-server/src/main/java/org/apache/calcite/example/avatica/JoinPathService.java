@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.schema.SchemaPlus;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Keeps a {@link JoinGraph} of one Calcite schema resident and turns sets of
+ * table names into join SQL in-process. The schema is re-read when the files
+ * in its directory change; the directory is checked at most once per
+ * {@code checkIntervalMillis}, so lookups stay cheap between checks.
+ */
+public class JoinPathService {
+    private static volatile JoinPathService instance;
+
+    private final Properties info;
+    private final String schemaName;
+    private final File directory;
+    private final long checkIntervalMillis;
+    private volatile JoinGraph graph;
+    private volatile long fingerprint;
+    private volatile long checkedAt;
+
+    public JoinPathService(Properties info, String schemaName, File directory, long checkIntervalMillis) {
+        this.info = info;
+        this.schemaName = schemaName;
+        this.directory = directory;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /** Makes the service available to the {@code JOIN_SQL} function. */
+    static void register(JoinPathService service) {
+        instance = service;
+    }
+
+    static JoinPathService get() {
+        JoinPathService service = instance;
+        if (service == null) {
+            throw new IllegalStateException("Join path service has not been started");
+        }
+        return service;
+    }
+
+    /** Returns a SELECT joining the given tables along the inferred key relationships. */
+    public String joinSql(Collection<String> tables) {
+        if (tables.isEmpty()) {
+            throw new IllegalArgumentException("No tables given");
+        }
+        return graph().toSql(tables);
+    }
+
+    public String joinSql(String... tables) {
+        return joinSql(Arrays.asList(tables));
+    }
+
+    /** Returns the joins connecting the given tables, in the order they apply. */
+    List<JoinGraph.Join> joinPath(Collection<String> tables) {
+        return graph().joinTree(tables);
+    }
+
+    /** Current graph, re-read first if the schema directory changed. */
+    JoinGraph graph() {
+        JoinGraph current = graph;
+        long now = System.currentTimeMillis();
+        if (current != null && now - checkedAt < checkIntervalMillis) {
+            return current;
+        }
+        synchronized (this) {
+            if (graph == null || now - checkedAt >= checkIntervalMillis) {
+                long latest = fingerprint();
+                if (graph == null || latest != fingerprint) {
+                    graph = load();
+                    fingerprint = latest;
+                }
+                checkedAt = now;
+            }
+            return graph;
+        }
+    }
+
+    /** Re-reads the schema now, regardless of the directory check. */
+    public synchronized void refresh() {
+        fingerprint = fingerprint();
+        graph = load();
+        checkedAt = System.currentTimeMillis();
+    }
+
+    // A fresh connection, since a connection's schema keeps the tables it first saw
+    private JoinGraph load() {
+        try (Connection connection = DriverManager.getConnection("jdbc:calcite:", info)) {
+            CalciteConnection calcite = connection.unwrap(CalciteConnection.class);
+            SchemaPlus schema = calcite.getRootSchema().getSubSchema(schemaName);
+            if (schema == null) {
+                throw new IllegalStateException("Unknown schema: " + schemaName);
+            }
+            return JoinGraph.of(schemaName, schema, calcite.getTypeFactory());
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not read schema " + schemaName, e);
+        }
+    }
+
+    // Names, sizes and modification times of the directory's files
+    private long fingerprint() {
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        long hash = 1;
+        for (File file : files) {
+            hash = 31 * hash + file.getName().hashCode();
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        return hash;
+    }
+}
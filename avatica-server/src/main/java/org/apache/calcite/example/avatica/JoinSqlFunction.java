@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scalar function {@code JOIN_SQL('DEPTS, EMPS')}, declared in model.json, that
+ * returns the join SQL for a comma-separated list of tables. It lets JDBC
+ * clients of the server use {@link JoinPathService} without another endpoint.
+ */
+public class JoinSqlFunction {
+    public static String eval(String tables) {
+        List<String> names = new ArrayList<>();
+        for (String name : tables.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return JoinPathService.get().joinSql(names);
+    }
+}
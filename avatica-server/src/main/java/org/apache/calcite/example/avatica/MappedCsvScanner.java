@@ -0,0 +1,573 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads uncompressed CSV files by memory-mapping them in splits that end on
+ * line boundaries and parsing the splits in parallel. Numeric, boolean and
+ * date fields are parsed straight from the mapped bytes; only string fields
+ * (and numbers outside the fast paths) are decoded to {@code String}s.
+ *
+ * <p>Splits end at the first newline after their nominal size without
+ * knowing whether it is inside quotes. A quoted field may hold line breaks
+ * within a split, but a scan fails rather than mis-splitting rows when a
+ * split would end inside one; such files must be read with
+ * {@link CsvColumnarReader}, i.e. without the {@code parallelScan} operand.
+ *
+ * <p>Gzipped files cannot be split. They are either read by a single thread
+ * or, with {@code transcodeGzip}, decompressed once into a plain CSV file
+ * that is scanned in parallel from then on and replaced when the original
+ * changes.
+ */
+final class MappedCsvScanner {
+    static final long DEFAULT_SPLIT_BYTES = 64L << 20;
+
+    // Splits are mapped as one buffer each, and the last line of a split may
+    // run past its nominal end
+    private static final long MAX_SPLIT_BYTES = 1L << 30;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    // Shared by all scanners, since schemas (and so scanners) are created per connection
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // Zone maps read or built by this process, by data file
+    private static final Map<File, ZoneMap> ZONE_MAPS = new ConcurrentHashMap<>();
+
+    private final long splitBytes;
+    private final File transcodeDirectory;
+
+    /**
+     * @param splitBytes nominal split size
+     * @param transcodeDirectory where to keep decompressed copies of gzipped
+     *     files, or null to read them with a single thread
+     */
+    MappedCsvScanner(long splitBytes, File transcodeDirectory) {
+        if (splitBytes <= 0 || splitBytes > MAX_SPLIT_BYTES) {
+            throw new IllegalArgumentException("splitBytes must be in (0, " + MAX_SPLIT_BYTES + "]: " + splitBytes);
+        }
+        this.splitBytes = splitBytes;
+        this.transcodeDirectory = transcodeDirectory;
+    }
+
+    /** Reads the whole file. */
+    ColumnarTable read(File file) throws IOException {
+        file = splittable(file);
+        if (file.getName().endsWith(".gz")) {
+            return CsvColumnarReader.read(file);
+        }
+        File source = file;
+        ColumnarTable header = CsvColumnarReader.readHeader(source);
+        List<Future<ColumnarTable>> futures = new ArrayList<>();
+        for (long[] split : splits(file, 0)) {
+            futures.add(POOL.submit(() -> parse(source, header, split, null)));
+        }
+        List<ColumnarTable> parts = new ArrayList<>();
+        for (Future<ColumnarTable> future : futures) {
+            parts.add(join(future));
+        }
+        return ColumnarTable.concat(header, parts);
+    }
+
+    /**
+     * Parses the file split by split, in file order, with at most the pool's
+     * parallelism of splits parsed ahead of the consumer. For files too large
+     * to hold in memory at once.
+     *
+     * <p>Only the columns flagged in {@code columns} (all if null) are parsed;
+     * the others are null in the returned splits. Splits whose zone map shows
+     * that no row satisfies all {@code filters} are skipped. The filters are
+     * not applied to the rows of the splits returned. A file without a valid
+     * zone map is parsed in full, and its zone map built on the way.
+     */
+    SplitIterator stream(File file, boolean[] columns, List<ColumnPredicate> filters) throws IOException {
+        file = splittable(file);
+        if (file.getName().endsWith(".gz")) {
+            return new SplitIterator(CsvColumnarReader.read(file));
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ZoneMap zones = ZONE_MAPS.get(file);
+        if (zones == null || zones.length != length || zones.lastModified != lastModified) {
+            zones = ZoneMap.load(file);
+            if (zones != null) {
+                ZONE_MAPS.put(file, zones);
+            }
+        }
+        ColumnarTable header = CsvColumnarReader.readHeader(file);
+        if (zones == null) {
+            return new SplitIterator(file, header, splits(file, 0), null, filters, null, length, lastModified);
+        }
+        return new SplitIterator(file, header, zones.blocks, columns, filters, zones, length, lastModified);
+    }
+
+    /**
+     * Parses the records from byte {@code from}, which must start a line, to
+     * the end of an uncompressed file; for example the rows appended since
+     * the file was last read.
+     */
+    SplitIterator stream(File file, long from) throws IOException {
+        ColumnarTable header = CsvColumnarReader.readHeader(file);
+        return new SplitIterator(file, header, splits(file, from), null, Collections.emptyList(), null, -1, -1);
+    }
+
+    /** Split results in file order; close to cancel the splits not yet consumed. */
+    final class SplitIterator implements Iterator<ColumnarTable>, AutoCloseable {
+        private final File file;
+        private final ColumnarTable header;
+        private final List<long[]> splits;
+        private final boolean[] columns;
+        private final List<ColumnPredicate> filters;
+        private final ZoneMap zones;
+        private final long length;
+        private final long lastModified;
+        // Bounds of each split, collected to build the zone map when there is
+        // none and the whole file is scanned
+        private final Object[][][] bounds;
+        private final ArrayDeque<Future<ColumnarTable>> window = new ArrayDeque<>();
+        private int next;
+        private int skipped;
+        private ColumnarTable single;
+
+        SplitIterator(File file, ColumnarTable header, List<long[]> splits, boolean[] columns,
+                List<ColumnPredicate> filters, ZoneMap zones, long length, long lastModified) {
+            this.file = file;
+            this.header = header;
+            this.splits = splits;
+            this.columns = columns;
+            this.filters = filters;
+            this.zones = zones;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.bounds = zones == null && length >= 0 ? new Object[splits.size()][][] : null;
+            fill();
+        }
+
+        SplitIterator(ColumnarTable single) {
+            this(null, null, new ArrayList<>(), null, null, null, -1, -1);
+            this.single = single;
+        }
+
+        private void fill() {
+            while (window.size() < POOL.getParallelism() && next < splits.size()) {
+                int index = next++;
+                if (zones != null && !zones.mayMatch(index, filters)) {
+                    skipped++;
+                    continue;
+                }
+                long[] split = splits.get(index);
+                window.add(POOL.submit(() -> {
+                    ColumnarTable part = parse(file, header, split, columns);
+                    if (bounds != null) {
+                        bounds[index] = ZoneMap.bounds(part);
+                    }
+                    return part;
+                }));
+            }
+            if (bounds != null && window.isEmpty() && next == splits.size()) {
+                // Every split has been parsed and consumed
+                ZoneMap built = new ZoneMap(length, lastModified, splits, bounds);
+                ZONE_MAPS.put(file, built);
+                built.save(file);
+            }
+        }
+
+        /** Number of splits skipped so far by their zone map. */
+        int getSkipped() {
+            return skipped;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return single != null || !window.isEmpty();
+        }
+
+        @Override
+        public ColumnarTable next() {
+            if (single != null) {
+                ColumnarTable table = single;
+                single = null;
+                return table;
+            }
+            if (window.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            ColumnarTable part = join(window.poll());
+            fill();
+            return part;
+        }
+
+        @Override
+        public void close() {
+            single = null;
+            for (Future<ColumnarTable> future : window) {
+                future.cancel(false);
+            }
+            window.clear();
+        }
+    }
+
+    private static ColumnarTable join(Future<ColumnarTable> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Cuts the data from {@code from}, or after the header line if 0, into
+     * [start, end) ranges that end just after a newline.
+     */
+    List<long[]> splits(File file, long from) throws IOException {
+        List<long[]> splits = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            long start = from == 0 ? lineEnd(channel, 0, length) : from;
+            while (start < length) {
+                long end = start + splitBytes >= length ? length : lineEnd(channel, start + splitBytes, length);
+                splits.add(new long[] {start, end});
+                start = end;
+            }
+        }
+        return splits;
+    }
+
+    // Position just after the first newline at or after position, or length if there is none
+    private static long lineEnd(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < length) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return length;
+    }
+
+    // Parses the flagged columns (all if columns is null) of one split
+    private static ColumnarTable parse(File file, ColumnarTable header, long[] split, boolean[] columns)
+            throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, split[0], split[1] - split[0]);
+        }
+        List<String> names = header.names;
+        List<CsvColumnarReader.ColumnBuilder> builders = new ArrayList<>();
+        for (int c = 0; c < header.columns.size(); c++) {
+            builders.add(columns == null || columns[c]
+                ? new CsvColumnarReader.ColumnBuilder(header.columns.get(c).type) : null);
+        }
+        FieldParser fields = new FieldParser(buffer);
+        int rows = 0;
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '\n') {
+                pos++;
+                continue;
+            }
+            if (b == '\r' && (pos + 1 == limit || buffer.get(pos + 1) == '\n')) {
+                pos += 2;
+                continue;
+            }
+            int column = 0;
+            while (true) {
+                int fieldStart = pos;
+                int fieldEnd;
+                boolean quoted = false;
+                if (buffer.get(pos) == '"') {
+                    quoted = true;
+                    fieldStart = ++pos;
+                    while (pos < limit) {
+                        if (buffer.get(pos) == '"') {
+                            if (pos + 1 < limit && buffer.get(pos + 1) == '"') {
+                                pos += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        pos++;
+                    }
+                    if (pos >= limit && split[1] < file.length()) {
+                        // The split's last newline is inside quotes, so the next split starts mid-field
+                        throw new IllegalStateException("Quoted field spans the split boundary at byte "
+                            + split[1] + " of " + file + "; read it without parallelScan");
+                    }
+                    fieldEnd = pos;
+                    // Anything between the closing quote and the delimiter is dropped
+                    while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != '\n') {
+                        pos++;
+                    }
+                } else {
+                    while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != '\n') {
+                        pos++;
+                    }
+                    fieldEnd = pos > fieldStart && buffer.get(pos - 1) == '\r' ? pos - 1 : pos;
+                }
+                if (column < builders.size() && builders.get(column) != null) {
+                    fields.add(builders.get(column), fieldStart, fieldEnd, quoted);
+                }
+                column++;
+                if (pos >= limit || buffer.get(pos) == '\n') {
+                    pos++;
+                    break;
+                }
+                pos++;
+                if (pos == limit) {
+                    // Trailing comma at end of input: one more, empty, field
+                    if (column < builders.size() && builders.get(column) != null) {
+                        fields.add(builders.get(column), pos, pos, false);
+                    }
+                    column++;
+                    break;
+                }
+            }
+            for (; column < builders.size(); column++) {
+                if (builders.get(column) != null) {
+                    builders.get(column).add(null);
+                }
+            }
+            rows++;
+        }
+        return CsvColumnarReader.build(names, builders, rows);
+    }
+
+    /** Converts fields of one mapped split into column values. */
+    private static final class FieldParser {
+        private final ByteBuffer buffer;
+        private byte[] scratch = new byte[64];
+
+        FieldParser(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void add(CsvColumnarReader.ColumnBuilder builder, int start, int end, boolean quoted) {
+            ColumnarTable.Type type = builder.type();
+            if (type.isString()) {
+                builder.addString(decode(start, end, quoted));
+                return;
+            }
+            while (start < end && buffer.get(start) <= ' ') start++;
+            while (end > start && buffer.get(end - 1) <= ' ') end--;
+            if (start == end) {
+                builder.addNull();
+                return;
+            }
+            switch (type) {
+                case BYTE:
+                case SHORT:
+                case INT: {
+                    long value = parseLong(start, end);
+                    if (value != Long.MIN_VALUE && value == (int) value) {
+                        builder.addInt((int) value);
+                        return;
+                    }
+                    break;
+                }
+                case LONG: {
+                    long value = parseLong(start, end);
+                    if (value != Long.MIN_VALUE) {
+                        builder.addLong(value);
+                        return;
+                    }
+                    break;
+                }
+                case FLOAT:
+                case DOUBLE: {
+                    double value = parseDouble(start, end);
+                    if (!Double.isNaN(value)) {
+                        builder.addDouble(value);
+                        return;
+                    }
+                    break;
+                }
+                case BOOLEAN:
+                    builder.addBoolean(end - start == 4
+                        && (buffer.get(start) | 0x20) == 't' && (buffer.get(start + 1) | 0x20) == 'r'
+                        && (buffer.get(start + 2) | 0x20) == 'u' && (buffer.get(start + 3) | 0x20) == 'e');
+                    return;
+                case DATE: {
+                    int day = parseDate(start, end);
+                    if (day != Integer.MIN_VALUE) {
+                        builder.addInt(day);
+                        return;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            // Unusual formats (and malformed values) take the reader's path, so
+            // they are accepted or rejected exactly as there
+            builder.add(decode(start, end, quoted));
+        }
+
+        // Decimal integer with optional sign and at most 18 digits, else Long.MIN_VALUE
+        private long parseLong(int start, int end) {
+            boolean negative = buffer.get(start) == '-';
+            int pos = negative || buffer.get(start) == '+' ? start + 1 : start;
+            if (pos == end || end - pos > 18) return Long.MIN_VALUE;
+            long value = 0;
+            for (; pos < end; pos++) {
+                int digit = buffer.get(pos) - '0';
+                if (digit < 0 || digit > 9) return Long.MIN_VALUE;
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        // Plain decimals of up to 15 significant digits are exact as long / 10^k
+        // and so correctly rounded; anything else returns NaN
+        private double parseDouble(int start, int end) {
+            boolean negative = buffer.get(start) == '-';
+            int pos = negative || buffer.get(start) == '+' ? start + 1 : start;
+            long mantissa = 0;
+            int digits = 0;
+            int scale = -1;
+            for (; pos < end; pos++) {
+                byte b = buffer.get(pos);
+                if (b == '.' && scale < 0) {
+                    scale = 0;
+                    continue;
+                }
+                int digit = b - '0';
+                if (digit < 0 || digit > 9 || ++digits > 15) return Double.NaN;
+                mantissa = mantissa * 10 + digit;
+                if (scale >= 0) scale++;
+            }
+            if (digits == 0) return Double.NaN;
+            double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return negative ? -value : value;
+        }
+
+        // yyyy-MM-dd as days since the epoch, else Integer.MIN_VALUE
+        private int parseDate(int start, int end) {
+            if (end - start != 10 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-') {
+                return Integer.MIN_VALUE;
+            }
+            for (int pos = start; pos < end; pos++) {
+                byte b = buffer.get(pos);
+                if ((b < '0' || b > '9') && pos != start + 4 && pos != start + 7) return Integer.MIN_VALUE;
+            }
+            int year = (int) parseLong(start, start + 4);
+            int month = (int) parseLong(start + 5, start + 7);
+            int day = (int) parseLong(start + 8, end);
+            try {
+                return (int) LocalDate.of(year, month, day).toEpochDay();
+            } catch (DateTimeException e) {
+                return Integer.MIN_VALUE;
+            }
+        }
+
+        private String decode(int start, int end, boolean quoted) {
+            int length = 0;
+            if (scratch.length < end - start) {
+                scratch = new byte[Math.max(end - start, 2 * scratch.length)];
+            }
+            for (int pos = start; pos < end; pos++) {
+                byte b = buffer.get(pos);
+                scratch[length++] = b;
+                if (quoted && b == '"') {
+                    pos++;
+                }
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    // The file to scan in place of a gzipped one: its transcoded copy when enabled
+    private File splittable(File file) throws IOException {
+        if (transcodeDirectory == null || !file.getName().endsWith(".gz")) {
+            return file;
+        }
+        String name = file.getName();
+        String base = name.substring(0, name.length() - ".gz".length());
+        if (base.endsWith(".csv")) {
+            base = base.substring(0, base.length() - ".csv".length());
+        }
+        // Named after the original's version so a changed original gets a new copy
+        File copy = new File(transcodeDirectory, base + "." + file.length() + "-" + file.lastModified() + ".csv");
+        if (copy.exists()) {
+            return copy;
+        }
+        Files.createDirectories(transcodeDirectory.toPath());
+        Path temp = Files.createTempFile(transcodeDirectory.toPath(), base, ".tmp");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()), 1 << 16)) {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, copy.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Pattern versions = Pattern.compile(Pattern.quote(base) + "\\.\\d+-\\d+\\.csv(\\.zones)?");
+        File[] stale = transcodeDirectory.listFiles((dir, other) ->
+            versions.matcher(other).matches() && !other.startsWith(copy.getName()));
+        if (stale != null) {
+            for (File old : stale) {
+                old.delete();
+            }
+        }
+        return copy;
+    }
+}
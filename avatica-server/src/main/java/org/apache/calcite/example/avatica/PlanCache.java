@@ -0,0 +1,707 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.avatica.AvaticaParameter;
+import org.apache.calcite.config.CalciteConnectionConfig;
+import org.apache.calcite.jdbc.CalcitePrepare;
+import org.apache.calcite.linq4j.QueryProvider;
+import org.apache.calcite.prepare.CalcitePrepareImpl;
+import org.apache.calcite.schema.SchemaPlus;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide cache of prepared plans, so that a statement whose shape has
+ * been seen before, on any connection, skips parsing, validation,
+ * optimisation and code generation.
+ *
+ * <p>Statements are keyed by their text with comments other than hints
+ * ({@code /*+ ...}) and redundant whitespace removed and with the literals
+ * compared against, such as {@code DEPTNO = 10}, {@code NAME LIKE 'A%'},
+ * {@code AGE BETWEEN 20 AND 30} or {@code EMPNO IN (100, 110)}, replaced by
+ * dynamic parameters; and by the default schema, the connection settings
+ * that change how a statement is parsed, validated or planned
+ * ({@code lex}, {@code caseSensitive}, {@code conformance}, {@code fun} and
+ * the like), the {@link SchemaVersion schema version} and the row limit.
+ * The plan of such a shape is compiled with parameters, and each statement
+ * runs it with its own literals bound internally, so clients still see a
+ * statement without parameters. A literal whose value would not keep its
+ * meaning as a value of the parameter's type, say {@code 2.5} for an INTEGER
+ * column, makes the statement fall back to a plan for its exact text, as does
+ * a shape that does not compile with parameters.
+ *
+ * <p>Only queries (SELECT and WITH) are cached. Plans hold the schema objects
+ * of the connection that compiled them, which is sound here because the CSV
+ * schemas keep no per-connection state. The cache holds a bounded number of
+ * plans, evicting the least recently used; memory is estimated, since the
+ * size of a plan's generated code is not observable.
+ *
+ * <p>Connections opened with {@link Driver#CONNECT_STRING_PREFIX} use the
+ * cache.
+ */
+public class PlanCache {
+    static final int DEFAULT_MAX_PLANS = 1000;
+
+    // Estimated size of the generated code and metadata of one plan
+    private static final long PLAN_BYTES = 32L << 10;
+    private static final long COLUMN_BYTES = 512;
+
+    private static final PlanCache INSTANCE = new PlanCache(DEFAULT_MAX_PLANS, CachedCsvSchemaFactory::schemaVersion);
+
+    private static final class Key {
+        final String sql;
+        final List<String> schemaPath;
+        final List<Object> settings;
+        final Type elementType;
+        final long maxRowCount;
+        final long version;
+
+        Key(String sql, List<String> schemaPath, List<Object> settings, Type elementType, long maxRowCount,
+                long version) {
+            this.sql = sql;
+            this.schemaPath = schemaPath;
+            this.settings = settings;
+            this.elementType = elementType;
+            this.maxRowCount = maxRowCount;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return sql.equals(key.sql) && Objects.equals(schemaPath, key.schemaPath)
+                && settings.equals(key.settings) && Objects.equals(elementType, key.elementType)
+                && maxRowCount == key.maxRowCount && version == key.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sql, schemaPath, settings, elementType, maxRowCount, version);
+        }
+    }
+
+    private static final class Entry {
+        // Null if the shape does not compile with parameters
+        final CalcitePrepare.CalciteSignature<?> signature;
+        final long compileNanos;
+        final long bytes;
+
+        Entry(CalcitePrepare.CalciteSignature<?> signature, long compileNanos) {
+            this.signature = signature;
+            this.compileNanos = compileNanos;
+            this.bytes = PLAN_BYTES + 2L * signature.sql.length()
+                + (signature.columns == null ? 0 : COLUMN_BYTES * signature.columns.size());
+        }
+
+        Entry(long compileNanos) {
+            this.signature = null;
+            this.compileNanos = compileNanos;
+            this.bytes = 0;
+        }
+    }
+
+    private final LongSupplier schemaVersion;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxPlans;
+    private long version;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private long fallbacks;
+    private long compileNanos;
+    private long savedNanos;
+
+    PlanCache(int maxPlans, LongSupplier schemaVersion) {
+        this.maxPlans = maxPlans;
+        this.schemaVersion = schemaVersion;
+    }
+
+    /** The cache used by connections of {@link Driver}. */
+    public static PlanCache get() {
+        return INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> CalcitePrepare.CalciteSignature<T> prepare(Prepare prepare, CalcitePrepare.Context context,
+            CalcitePrepare.Query<T> query, Type elementType, long maxRowCount) {
+        Shape shape = query.sql == null ? null : Shape.of(query.sql);
+        if (shape == null) {
+            return prepare.compile(context, query, elementType, maxRowCount);
+        }
+        long version = schemaVersion.getAsLong();
+        List<String> schemaPath = context.getDefaultSchemaPath();
+        List<Object> settings = settings(context.config());
+        if (!shape.literals.isEmpty()) {
+            Key key = new Key(shape.sql + '\u0000' + shape.kinds, schemaPath, settings, elementType, maxRowCount,
+                version);
+            Entry entry = lookup(key);
+            boolean cached = entry != null;
+            if (!cached) {
+                entry = compile(prepare, context, CalcitePrepare.Query.of(shape.sql), elementType, maxRowCount, true);
+                put(key, entry);
+            }
+            if (entry.signature != null) {
+                CalcitePrepare.CalciteSignature<T> bound =
+                    bind((CalcitePrepare.CalciteSignature<T>) entry.signature, query.sql, shape.literals);
+                if (bound != null) {
+                    if (cached) {
+                        hit(entry);
+                    }
+                    return bound;
+                }
+            }
+            synchronized (this) {
+                fallbacks++;
+            }
+        }
+        Key key = new Key(shape.exactSql, schemaPath, settings, elementType, maxRowCount, version);
+        Entry entry = lookup(key);
+        if (entry == null) {
+            entry = compile(prepare, context, query, elementType, maxRowCount, false);
+            put(key, entry);
+        } else {
+            hit(entry);
+        }
+        return (CalcitePrepare.CalciteSignature<T>) entry.signature;
+    }
+
+    // The connection settings that a plan depends on
+    private static List<Object> settings(CalciteConnectionConfig config) {
+        return Arrays.asList(config.lex(), config.quoting(), config.unquotedCasing(), config.quotedCasing(),
+            config.caseSensitive(), config.conformance(), config.fun(), config.timeZone(),
+            config.defaultNullCollation(), config.forceDecorrelate(), config.approximateDistinctCount(),
+            config.approximateTopN(), config.approximateDecimal());
+    }
+
+    private <T> Entry compile(Prepare prepare, CalcitePrepare.Context context, CalcitePrepare.Query<T> query,
+            Type elementType, long maxRowCount, boolean parameterized) {
+        long start = System.nanoTime();
+        try {
+            return new Entry(prepare.compile(context, query, elementType, maxRowCount), elapsed(start));
+        } catch (RuntimeException e) {
+            if (!parameterized) {
+                throw e;
+            }
+            // The shape needs its literals, e.g. for type inference; remember that
+            return new Entry(elapsed(start));
+        }
+    }
+
+    private long elapsed(long start) {
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            compileNanos += nanos;
+        }
+        return nanos;
+    }
+
+    private synchronized Entry lookup(Key key) {
+        if (key.version != version) {
+            // Plans of earlier versions can no longer be looked up
+            invalidations += entries.size();
+            entries.clear();
+            bytes = 0;
+            version = key.version;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+        }
+        return entry;
+    }
+
+    private synchronized void hit(Entry entry) {
+        hits++;
+        savedNanos += entry.compileNanos;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        if (key.version != version) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+        for (Iterator<Entry> eldest = entries.values().iterator(); entries.size() > maxPlans && eldest.hasNext();) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * The plan of a shape with the statement's literals bound to its
+     * parameters, or null if a literal does not fit its parameter's type.
+     */
+    private static <T> CalcitePrepare.CalciteSignature<T> bind(CalcitePrepare.CalciteSignature<T> plan, String sql,
+            List<Literal> literals) {
+        if (plan.parameters.size() != literals.size()) {
+            return null;
+        }
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < literals.size(); i++) {
+            Object value = literals.get(i).value(plan.parameters.get(i));
+            if (value == null) {
+                return null;
+            }
+            values.put("?" + i, value);
+        }
+        return new CalcitePrepare.CalciteSignature<>(sql, Collections.emptyList(), plan.internalParameters,
+            plan.rowType, plan.columns, plan.cursorFactory, plan.rootSchema, plan.getCollationList(), -1,
+            dataContext -> plan.enumerable(new BoundDataContext(dataContext, values)), plan.statementType);
+    }
+
+    public synchronized void setMaxPlans(int maxPlans) {
+        this.maxPlans = maxPlans;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int getMaxPlans() {
+        return maxPlans;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Estimated memory held by the cached plans. */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Plans dropped because the schema version changed. */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /** Statements whose literals did not fit their shape's plan, and were planned by exact text. */
+    public synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    /** Time spent compiling plans. */
+    public synchronized long getCompileNanos() {
+        return compileNanos;
+    }
+
+    /** Compile time of the plans reused by hits, that is, compile time saved. */
+    public synchronized long getSavedNanos() {
+        return savedNanos;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT,
+            "PlanCache(plans=%d/%d, bytes~%d, hits=%d, misses=%d, hitRate=%.2f, saved=%dms, compiled=%dms, "
+                + "evictions=%d, invalidations=%d, fallbacks=%d)",
+            entries.size(), maxPlans, bytes, hits, misses, getHitRate(), savedNanos / 1_000_000,
+            compileNanos / 1_000_000, evictions, invalidations, fallbacks);
+    }
+
+    /** A literal lifted out of a statement. */
+    static final class Literal {
+        final String text;
+        // Whether text is the contents of a character string literal, not a number
+        final boolean string;
+
+        Literal(String text, boolean string) {
+            this.text = text;
+            this.string = string;
+        }
+
+        /**
+         * The literal as a value of the parameter's type in Calcite's internal
+         * representation, or null if it would not compare the same as the
+         * literal itself does.
+         */
+        Object value(AvaticaParameter parameter) {
+            if (string) {
+                switch (parameter.parameterType) {
+                    case Types.CHAR:
+                    case Types.VARCHAR:
+                        return text;
+                    default:
+                        return null;
+                }
+            }
+            BigDecimal number = new BigDecimal(text);
+            boolean approximate = text.indexOf('e') >= 0 || text.indexOf('E') >= 0;
+            try {
+                switch (parameter.parameterType) {
+                    case Types.TINYINT:
+                        return approximate ? null : number.byteValueExact();
+                    case Types.SMALLINT:
+                        return approximate ? null : number.shortValueExact();
+                    case Types.INTEGER:
+                        return approximate ? null : number.intValueExact();
+                    case Types.BIGINT:
+                        return approximate ? null : number.longValueExact();
+                    case Types.DECIMAL:
+                    case Types.NUMERIC:
+                        return approximate || number.scale() > parameter.scale
+                            || number.precision() - number.scale() > parameter.precision - parameter.scale
+                            ? null : number;
+                    case Types.DOUBLE:
+                    case Types.FLOAT:
+                        return number.doubleValue();
+                    case Types.REAL:
+                        return number.floatValue();
+                    default:
+                        return null;
+                }
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A query's shape: its text with comments and redundant whitespace removed
+     * ({@link #exactSql}), and also with the literals compared against
+     * replaced by {@code ?} ({@link #sql}).
+     */
+    static final class Shape {
+        private static final List<String> COMPARISONS = List.of("=", "<>", "!=", "<", "<=", ">", ">=");
+        private static final List<String> ENDS = List.of(")", ",", ";", "AND", "OR", "ORDER", "GROUP", "HAVING",
+            "LIMIT", "OFFSET", "FETCH", "UNION", "INTERSECT", "EXCEPT", "MINUS", "THEN", "ELSE", "END", "WHEN",
+            "ESCAPE");
+
+        final String sql;
+        final String exactSql;
+        final List<Literal> literals;
+        // One letter per literal: 's'tring, 'n'umber, 'd'ecimal or 'a'pproximate; 1 and 1.5 plan differently
+        final String kinds;
+
+        private Shape(String sql, String exactSql, List<Literal> literals, String kinds) {
+            this.sql = sql;
+            this.exactSql = exactSql;
+            this.literals = literals;
+            this.kinds = kinds;
+        }
+
+        /** The shape of a query, or null if the statement is not a query or cannot be tokenised. */
+        static Shape of(String sql) {
+            List<Token> tokens = Token.tokenize(sql);
+            if (tokens == null) {
+                return null;
+            }
+            int first = 0;
+            while (first < tokens.size() && tokens.get(first).text.equals("(")) {
+                first++;
+            }
+            if (first == tokens.size() || !(tokens.get(first).is("SELECT") || tokens.get(first).is("WITH"))) {
+                return null;
+            }
+            boolean[] lifted = new boolean[tokens.size()];
+            boolean dynamic = false;
+            for (int i = 0; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                dynamic |= token.text.equals("?");
+                lifted[i] = token.isLiteral() && liftable(tokens, i);
+            }
+            StringBuilder exact = new StringBuilder();
+            StringBuilder shape = new StringBuilder();
+            List<Literal> literals = new ArrayList<>();
+            StringBuilder kinds = new StringBuilder();
+            for (int i = 0; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (i > 0 && token.spaceBefore) {
+                    exact.append(' ');
+                    shape.append(' ');
+                }
+                exact.append(token.text);
+                if (lifted[i] && !dynamic) {
+                    shape.append('?');
+                    literals.add(new Literal(token.string ? token.value : token.text, token.string));
+                    kinds.append(token.string ? 's' : token.text.matches(".*[eE].*") ? 'a'
+                        : token.text.indexOf('.') >= 0 ? 'd' : 'n');
+                } else {
+                    shape.append(token.text);
+                }
+            }
+            return new Shape(shape.toString(), exact.toString(), literals, kinds.toString());
+        }
+
+        // Whether the literal at i is compared with, so that a parameter takes its type from the other side
+        private static boolean liftable(List<Token> tokens, int i) {
+            Token previous = i == 0 ? null : tokens.get(i - 1);
+            Token next = i + 1 == tokens.size() ? null : tokens.get(i + 1);
+            boolean ends = next == null || ENDS.contains(next.text.toUpperCase(Locale.ROOT));
+            if (previous == null) {
+                return false;
+            }
+            if (COMPARISONS.contains(previous.text) || previous.is("LIKE") || previous.is("BETWEEN")) {
+                return ends;
+            }
+            // Upper bound of BETWEEN x AND y
+            if (previous.is("AND") && i >= 3 && tokens.get(i - 3).is("BETWEEN") && tokens.get(i - 2).isLiteral()) {
+                return ends;
+            }
+            // Left-hand literal, as in 'Vancouver' = CITY
+            if (next != null && COMPARISONS.contains(next.text)
+                && (previous.is("WHERE") || previous.is("AND") || previous.is("OR") || previous.is("ON")
+                    || previous.is("HAVING") || previous.is("WHEN") || previous.text.equals("("))) {
+                return i + 2 < tokens.size() && !tokens.get(i + 2).isLiteral();
+            }
+            // Element of an IN list of literals
+            if (previous.text.equals("(") || previous.text.equals(",")) {
+                int j = i - 1;
+                while (j >= 2 && tokens.get(j).text.equals(",") && tokens.get(j - 1).isLiteral()) {
+                    j -= 2;
+                }
+                return j > 0 && tokens.get(j).text.equals("(") && tokens.get(j - 1).is("IN")
+                    && next != null && (next.text.equals(",") || next.text.equals(")"));
+            }
+            return false;
+        }
+    }
+
+    /** A token of SQL text. */
+    private static final class Token {
+        final String text;
+        final boolean spaceBefore;
+        // For a character string literal, its value
+        final String value;
+        final boolean string;
+        final boolean number;
+
+        private Token(String text, boolean spaceBefore, String value, boolean string, boolean number) {
+            this.text = text;
+            this.spaceBefore = spaceBefore;
+            this.value = value;
+            this.string = string;
+            this.number = number;
+        }
+
+        boolean is(String keyword) {
+            return text.equalsIgnoreCase(keyword);
+        }
+
+        boolean isLiteral() {
+            return string || number;
+        }
+
+        /** Tokens of the text, or null if it has an unterminated literal, identifier or comment. */
+        static List<Token> tokenize(String sql) {
+            List<Token> tokens = new ArrayList<>();
+            boolean space = false;
+            int n = sql.length();
+            int i = 0;
+            while (i < n) {
+                char c = sql.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    space = true;
+                    i++;
+                    continue;
+                }
+                if (sql.startsWith("--", i)) {
+                    int end = sql.indexOf('\n', i);
+                    i = end < 0 ? n : end + 1;
+                    space = true;
+                    continue;
+                }
+                if (sql.startsWith("/*", i)) {
+                    int end = sql.indexOf("*/", i + 2);
+                    if (end < 0) return null;
+                    i = end + 2;
+                    if (sql.startsWith("/*+", start)) {
+                        // A hint changes the plan, so it is kept, as one token
+                        tokens.add(new Token(sql.substring(start, i), space, null, false, false));
+                        space = false;
+                    } else {
+                        space = true;
+                    }
+                    continue;
+                }
+                if (c == '\'' || c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i >= n) return null;
+                        char d = sql.charAt(i++);
+                        if (d == c) {
+                            if (i < n && sql.charAt(i) == c) {
+                                value.append(c);
+                                i++;
+                                continue;
+                            }
+                            break;
+                        }
+                        value.append(d);
+                    }
+                    // A string with a prefix such as X'..' or _UTF8'..' is not a plain literal
+                    boolean plain = c == '\'' && (tokens.isEmpty() || space || !isWord(tokens.get(tokens.size() - 1)));
+                    tokens.add(new Token(sql.substring(start, i), space, value.toString(), plain, false));
+                } else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)))) {
+                    while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) i++;
+                    if (i < n && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+                        int exponent = i + 1;
+                        if (exponent < n && (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-')) exponent++;
+                        if (exponent < n && Character.isDigit(sql.charAt(exponent))) {
+                            i = exponent;
+                            while (i < n && Character.isDigit(sql.charAt(i))) i++;
+                        }
+                    }
+                    String text = sql.substring(start, i);
+                    boolean valid = text.indexOf('.') == text.lastIndexOf('.');
+                    tokens.add(new Token(text, space, null, false, valid));
+                } else if (Character.isLetter(c) || c == '_' || c == '$') {
+                    while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_'
+                        || sql.charAt(i) == '$')) i++;
+                    tokens.add(new Token(sql.substring(start, i), space, null, false, false));
+                } else {
+                    i++;
+                    if (i < n && ((c == '<' && (sql.charAt(i) == '=' || sql.charAt(i) == '>'))
+                        || ((c == '>' || c == '!') && sql.charAt(i) == '=') || (c == '|' && sql.charAt(i) == '|'))) {
+                        i++;
+                    }
+                    tokens.add(new Token(sql.substring(start, i), space, null, false, false));
+                }
+                space = false;
+            }
+            return tokens;
+        }
+
+        private static boolean isWord(Token token) {
+            char c = token.text.charAt(0);
+            return Character.isLetter(c) || c == '_' || c == '$';
+        }
+    }
+
+    /** Execution context with the statement's literals as the values of the plan's parameters. */
+    private static final class BoundDataContext implements DataContext {
+        private final DataContext context;
+        private final Map<String, Object> values;
+
+        BoundDataContext(DataContext context, Map<String, Object> values) {
+            this.context = context;
+            this.values = values;
+        }
+
+        @Override
+        public SchemaPlus getRootSchema() {
+            return context.getRootSchema();
+        }
+
+        @Override
+        public JavaTypeFactory getTypeFactory() {
+            return context.getTypeFactory();
+        }
+
+        @Override
+        public QueryProvider getQueryProvider() {
+            return context.getQueryProvider();
+        }
+
+        @Override
+        public Object get(String name) {
+            return values.containsKey(name) ? values.get(name) : context.get(name);
+        }
+    }
+
+    /** Prepares statements through the cache. */
+    static final class Prepare extends CalcitePrepareImpl {
+        @Override
+        public <T> CalciteSignature<T> prepareSql(Context context, Query<T> query, Type elementType,
+                long maxRowCount) {
+            long start = System.nanoTime();
+            try {
+                return INSTANCE.prepare(this, context, query, elementType, maxRowCount);
+            } finally {
+                // Execution is timed without preparation
+                long nanos = System.nanoTime() - start;
+                ServerMetrics.trace().prepareNanos += nanos;
+                ServerMetrics.get().prepare.record(nanos);
+            }
+        }
+
+        <T> CalciteSignature<T> compile(Context context, Query<T> query, Type elementType, long maxRowCount) {
+            ServerMetrics.Trace trace = ServerMetrics.trace();
+            long start = System.nanoTime();
+            CalciteSignature<T> signature = super.prepareSql(context, query, elementType, maxRowCount);
+            ServerMetrics.get().compiled(start, trace, System.nanoTime());
+            return signature;
+        }
+    }
+
+    /** Calcite's driver with statements prepared through the cache. */
+    public static class Driver extends org.apache.calcite.jdbc.Driver {
+        public static final String CONNECT_STRING_PREFIX = "jdbc:calcite-plancache:";
+
+        static {
+            new Driver().register();
+        }
+
+        /** Registers the driver, if not already, and returns its connect string prefix. */
+        static String connectString() {
+            return CONNECT_STRING_PREFIX;
+        }
+
+        @Override
+        protected String getConnectStringPrefix() {
+            return CONNECT_STRING_PREFIX;
+        }
+
+        @Override
+        public CalcitePrepare createPrepare() {
+            return new Prepare();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+/**
+ * A number that changes whenever a statement over the CSV schemas may plan
+ * differently: a table file added, removed or given a new header, or a table
+ * analysed. Appending rows to a file does not change it. Like
+ * {@link JoinPathService}'s directory check, the directories are looked at
+ * no more than once per interval.
+ */
+final class SchemaVersion implements LongSupplier {
+    private final StatisticsStore statistics;
+    private final long checkIntervalMillis;
+    private final Set<File> directories = new TreeSet<>();
+    // File -> {length, lastModified, hash of the header}
+    private Map<File, long[]> headers = new HashMap<>();
+    private volatile long version;
+    private volatile long nextCheck;
+
+    SchemaVersion(StatisticsStore statistics, long checkIntervalMillis) {
+        this.statistics = statistics;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    synchronized void register(File directory) {
+        if (directories.add(directory.getAbsoluteFile())) {
+            nextCheck = 0;
+        }
+    }
+
+    @Override
+    public long getAsLong() {
+        long now = System.currentTimeMillis();
+        if (now < nextCheck) {
+            return version;
+        }
+        synchronized (this) {
+            if (now >= nextCheck) {
+                version = compute();
+                nextCheck = now + checkIntervalMillis;
+            }
+            return version;
+        }
+    }
+
+    private long compute() {
+        long hash = statistics.getAnalyses();
+        Map<File, long[]> seen = new HashMap<>();
+        for (File directory : directories) {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(".csv") || name.endsWith(".csv.gz"));
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                long[] header = headers.get(file);
+                if (header == null || header[0] != file.length() || header[1] != file.lastModified()) {
+                    header = new long[] {file.length(), file.lastModified(), headerHash(file)};
+                }
+                seen.put(file, header);
+                hash = 31 * hash + file.getName().hashCode();
+                hash = 31 * hash + header[2];
+            }
+        }
+        headers = seen;
+        return hash;
+    }
+
+    private static long headerHash(File file) {
+        try {
+            ColumnarTable header = CsvColumnarReader.readHeader(file);
+            long hash = header.names.hashCode();
+            for (ColumnarTable.Column column : header.columns) {
+                hash = 31 * hash + column.type.ordinal();
+            }
+            return hash;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable for now; planning will fail the same way until it changes
+            return file.lastModified();
+        }
+    }
+}
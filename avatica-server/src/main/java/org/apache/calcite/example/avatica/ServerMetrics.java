@@ -0,0 +1,544 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.avatica.metrics.Counter;
+import org.apache.calcite.avatica.metrics.Gauge;
+import org.apache.calcite.avatica.metrics.Histogram;
+import org.apache.calcite.avatica.metrics.Meter;
+import org.apache.calcite.avatica.metrics.Metric;
+import org.apache.calcite.avatica.metrics.MetricsSystem;
+import org.apache.calcite.avatica.metrics.Timer;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.runtime.Hook;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+
+/**
+ * Avatica's {@link MetricsSystem} for the server, with the timings of each
+ * phase of a request: reading the HTTP body, waiting for a thread (see
+ * {@link ExecutionHandler}), protobuf deserialisation, parse, validation and
+ * optimisation of a statement, execution, and serialisation of the response;
+ * the rows of each result frame, and its bytes in protobuf and as sent,
+ * after any columnar encoding or gzip; requests and statements in flight;
+ * and the counters of the CSV and plan caches.
+ *
+ * <p>Recording allocates nothing on a thread that has served a request
+ * before: timers and histograms count values in fixed log-scale buckets
+ * (within 12.5% of the value), counters are {@link LongAdder}s, and the
+ * points in a request where a phase ends, like the contexts of timers, are
+ * kept per thread. That holds for Jetty's threads and the POOLED mode's
+ * pools, but in VIRTUAL mode (see {@link ExecutionHandler}) every request
+ * has a new thread, which allocates its own {@link Trace} and a context for
+ * each timer it starts; these are small and die with the request.
+ * Percentiles are computed when read, through the MBean
+ * {@link #OBJECT_NAME} or in Prometheus' text format from
+ * {@code GET /metrics} on the server's port. The MBean's {@code handles}
+ * operation lists the open connections and statements (see
+ * {@link HandleCache}), which the HTTP port does not.
+ */
+public class ServerMetrics implements MetricsSystem {
+    public static final String OBJECT_NAME = "org.apache.calcite.example.avatica:type=ServerMetrics";
+    /** MBean operation listing the open handles, as {@link HandleCache#toString()}. */
+    static final String HANDLES_OPERATION = "handles";
+
+    static final String REQUEST_DECODE = "request.decode";
+    static final String REQUEST_QUEUE = "request.queue";
+    static final String REQUEST_DESERIALIZE = "request.deserialize";
+    static final String REQUEST_SERIALIZE = "request.serialize";
+    static final String REQUESTS_IN_FLIGHT = "requests.inflight";
+    static final String QUERY_PREPARE = "query.prepare";
+    static final String QUERY_PARSE = "query.parse";
+    static final String QUERY_VALIDATE = "query.validate";
+    static final String QUERY_OPTIMIZE = "query.optimize";
+    static final String QUERY_EXECUTE = "query.execute";
+    static final String STATEMENTS_EXECUTING = "statements.executing";
+    static final String FRAME_ROWS = "frame.rows";
+    static final String FRAME_BYTES = "frame.bytes";
+    static final String FRAME_WIRE_BYTES = "frame.wire.bytes";
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private static final ThreadLocal<Trace> TRACE = ThreadLocal.withInitial(Trace::new);
+
+    private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+    // The metrics recorded by the server itself, looked up once
+    final LatencyTimer decode = timer(REQUEST_DECODE);
+    final LatencyTimer queue = timer(REQUEST_QUEUE);
+    final LatencyTimer deserialize = timer(REQUEST_DESERIALIZE);
+    final LatencyTimer serialize = timer(REQUEST_SERIALIZE);
+    final AdderCounter requestsInFlight = counter(REQUESTS_IN_FLIGHT);
+    final LatencyTimer prepare = timer(QUERY_PREPARE);
+    final LatencyTimer parse = timer(QUERY_PARSE);
+    final LatencyTimer validate = timer(QUERY_VALIDATE);
+    final LatencyTimer optimize = timer(QUERY_OPTIMIZE);
+    final LatencyTimer execute = timer(QUERY_EXECUTE);
+    final AdderCounter statementsExecuting = counter(STATEMENTS_EXECUTING);
+    final LogHistogram frameRows = histogram(FRAME_ROWS);
+    final LogHistogram frameBytes = histogram(FRAME_BYTES);
+    final LogHistogram frameWireBytes = histogram(FRAME_WIRE_BYTES);
+
+    private boolean installed;
+
+    ServerMetrics() {
+    }
+
+    /** The metrics of every server in the process. */
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    /** Where the current thread is in the request it is serving. */
+    static Trace trace() {
+        return TRACE.get();
+    }
+
+    /**
+     * Starts timing the parse and validation of statements, registers the
+     * gauges of the caches, and registers the MBean; idempotent.
+     */
+    synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        Hook.PARSE_TREE.add((Consumer<Object[]>) args -> trace().parsed = System.nanoTime());
+        Hook.CONVERTED.add((Consumer<RelNode>) rel -> trace().converted = System.nanoTime());
+        ColumnarCsvCache cache = CachedCsvSchemaFactory.cache();
+        register("csv.cache.hits", cache::getHits);
+        register("csv.cache.misses", cache::getMisses);
+        register("csv.cache.evictions", cache::getEvictions);
+        register("csv.cache.bytes", cache::getBytes);
+        PlanCache plans = PlanCache.get();
+        register("plan.cache.hits", plans::getHits);
+        register("plan.cache.misses", plans::getMisses);
+        register("plan.cache.evictions", plans::getEvictions);
+        register("plan.cache.fallbacks", plans::getFallbacks);
+        register("plan.cache.bytes", plans::getBytes);
+        StatisticsStore statistics = CachedCsvSchemaFactory.statistics();
+        register("statistics.analyses", statistics::getAnalyses);
+        AdaptiveFrames frames = AdaptiveFrames.get();
+        register("cursors.open", frames::getOpenCursors);
+        register("cursors.bytes", frames::getHeldBytes);
+        HandleCache handles = HandleCache.get();
+        register("handles.connections", handles::getConnectionCount);
+        register("handles.statements", handles::getStatementCount);
+        register("handles.evictions", handles::getEvictions);
+        register("handles.refusals", handles::getRefusals);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by another instance, e.g. in tests
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Records the phases of compiling a statement, from the times its parse and conversion ended. */
+    void compiled(long start, Trace trace, long end) {
+        if (trace.parsed >= start) {
+            parse.record(trace.parsed - start);
+            if (trace.converted >= trace.parsed) {
+                validate.record(trace.converted - trace.parsed);
+                optimize.record(end - trace.converted);
+            }
+        }
+    }
+
+    @Override
+    public LatencyTimer getTimer(String name) {
+        return timer(name);
+    }
+
+    @Override
+    public LogHistogram getHistogram(String name) {
+        return histogram(name);
+    }
+
+    @Override
+    public Meter getMeter(String name) {
+        return (Meter) metrics.computeIfAbsent(name, n -> new AdderMeter());
+    }
+
+    @Override
+    public AdderCounter getCounter(String name) {
+        return counter(name);
+    }
+
+    @Override
+    public <T> void register(String name, Gauge<T> gauge) {
+        metrics.put(name, gauge);
+    }
+
+    private LatencyTimer timer(String name) {
+        return (LatencyTimer) metrics.computeIfAbsent(name, n -> new LatencyTimer());
+    }
+
+    private LogHistogram histogram(String name) {
+        return (LogHistogram) metrics.computeIfAbsent(name, n -> new LogHistogram());
+    }
+
+    private AdderCounter counter(String name) {
+        return (AdderCounter) metrics.computeIfAbsent(name, n -> new AdderCounter());
+    }
+
+    /** Current values, by metric and statistic ({@code query.execute.p99}), in nanoseconds for timers. */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+            if (metric instanceof LogHistogram || metric instanceof LatencyTimer) {
+                LogHistogram histogram = metric instanceof LatencyTimer
+                    ? ((LatencyTimer) metric).histogram : (LogHistogram) metric;
+                values.put(name + ".count", histogram.getCount());
+                values.put(name + ".mean", histogram.getMean());
+                values.put(name + ".p50", histogram.percentile(0.5));
+                values.put(name + ".p99", histogram.percentile(0.99));
+                values.put(name + ".p999", histogram.percentile(0.999));
+                values.put(name + ".max", histogram.getMax());
+            } else if (metric instanceof AdderCounter) {
+                values.put(name, ((AdderCounter) metric).getCount());
+            } else if (metric instanceof AdderMeter) {
+                values.put(name + ".count", ((AdderMeter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    values.put(name, (Number) value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /** The metrics in Prometheus' text exposition format, timers in seconds. */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(metrics).entrySet()) {
+            String name = "calcite_avatica_" + entry.getKey().replaceAll("[^a-zA-Z0-9_]", "_");
+            Metric metric = entry.getValue();
+            if (metric instanceof LatencyTimer) {
+                summary(out, name + "_seconds", ((LatencyTimer) metric).histogram, 1e-9);
+            } else if (metric instanceof LogHistogram) {
+                summary(out, name, (LogHistogram) metric, 1);
+            } else if (metric instanceof AdderMeter) {
+                sample(out.append("# TYPE ").append(name).append("_total counter\n"), name + "_total",
+                    ((AdderMeter) metric).getCount());
+            } else if (metric instanceof AdderCounter) {
+                sample(out.append("# TYPE ").append(name).append(" gauge\n"), name,
+                    ((AdderCounter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                Object value = ((Gauge<?>) metric).getValue();
+                if (value instanceof Number) {
+                    sample(out.append("# TYPE ").append(name).append(" gauge\n"), name,
+                        ((Number) value).doubleValue());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, LogHistogram histogram, double scale) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            sample(out, name + "{quantile=\"" + quantile + "\"}", histogram.percentile(quantile) * scale);
+        }
+        sample(out, name + "_sum", histogram.getSum() * scale);
+        sample(out, name + "_count", histogram.getCount());
+    }
+
+    private static void sample(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(value == Math.rint(value) && Math.abs(value) < 1e15
+            ? Long.toString((long) value) : Double.toString(value)).append('\n');
+    }
+
+    /** Points in time, in {@link System#nanoTime()}, at which phases of the thread's current request ended. */
+    static final class Trace {
+        long begin;
+        long parsed;
+        long converted;
+        long metaEnter;
+        long metaExit;
+        long prepareNanos;
+        // Rows of the frame the request returned, or -1 if none
+        long frameRows;
+        // Cursor the frame came from
+        AdaptiveFrames.Cursor cursor;
+        // Address of the client sending the request
+        String client;
+
+        void begin(long now) {
+            begin = now;
+            metaEnter = 0;
+            metaExit = 0;
+            frameRows = -1;
+            cursor = null;
+            client = null;
+        }
+    }
+
+    /**
+     * Counts of non-negative values in buckets by their highest bit and the
+     * {@value #SUB_BITS} bits below it; values under {@code 2^SUB_BITS} have a
+     * bucket each.
+     */
+    static final class LogHistogram implements Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) << SUB_BITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        @Override
+        public void update(int value) {
+            update((long) value);
+        }
+
+        @Override
+        public void update(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(bucket(v));
+            count.increment();
+            sum.add(v);
+            for (long m = max.get(); v > m && !max.compareAndSet(m, v); m = max.get()) {
+                // Retry against the newer maximum
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int high = 63 - Long.numberOfLeadingZeros(value);
+            return ((high - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (high - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        // Largest value that falls in the bucket
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int high = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+            long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << (high - SUB_BITS);
+            return lower + (1L << (high - SUB_BITS)) - 1;
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getSum() {
+            return sum.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /** A value no less than the given fraction of the values, within the bucket's precision. */
+        long percentile(double quantile) {
+            long n = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                n += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Durations in nanoseconds. A thread times one request at a time, so its
+     * context is reused; a virtual thread, serving one request, creates one.
+     */
+    static final class LatencyTimer implements Timer {
+        final LogHistogram histogram = new LogHistogram();
+        private final ThreadLocal<TimerContext> contexts = ThreadLocal.withInitial(() -> new TimerContext(this));
+
+        @Override
+        public Context start() {
+            TimerContext context = contexts.get();
+            context.start = System.nanoTime();
+            return context;
+        }
+
+        void record(long nanos) {
+            histogram.update(nanos);
+        }
+
+        void since(long start) {
+            histogram.update(System.nanoTime() - start);
+        }
+    }
+
+    private static final class TimerContext implements Timer.Context {
+        private final LatencyTimer timer;
+        long start;
+
+        TimerContext(LatencyTimer timer) {
+            this.timer = timer;
+        }
+
+        @Override
+        public void close() {
+            timer.since(start);
+        }
+    }
+
+    static final class AdderCounter implements Counter {
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void increment() {
+            count.increment();
+        }
+
+        @Override
+        public void increment(long n) {
+            count.add(n);
+        }
+
+        @Override
+        public void decrement() {
+            count.decrement();
+        }
+
+        @Override
+        public void decrement(long n) {
+            count.add(-n);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+
+    private static final class AdderMeter implements Meter {
+        private final LongAdder count = new LongAdder();
+
+        @Override
+        public void mark() {
+            count.increment();
+        }
+
+        @Override
+        public void mark(long events) {
+            count.add(events);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+    }
+
+    /** The snapshot as read-only attributes. */
+    private final class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.doubleValue();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value.doubleValue()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if (HANDLES_OPERATION.equals(actionName) && (params == null || params.length == 0)) {
+                return HandleCache.get().toString();
+            }
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "Calcite Avatica server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {
+                    new MBeanOperationInfo(HANDLES_OPERATION, "Open connections and statements by client",
+                        new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO)}, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "requests in flight %d, prepare p99 %.3f ms, execute p99 %.3f ms",
+            requestsInFlight.getCount(), prepare.histogram.percentile(0.99) / 1e6,
+            execute.histogram.percentile(0.99) / 1e6);
+    }
+}
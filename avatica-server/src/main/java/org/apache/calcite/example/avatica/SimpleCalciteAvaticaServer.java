@@ -30,18 +30,36 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple implementation of an Avatica server that exposes a Calcite model
  * through JDBC.
  */
 public class SimpleCalciteAvaticaServer {
+    private final ExecutionHandler.Mode executionMode;
     private HttpServer server;
+    private ExecutionHandler handler;
+    
+    /** A server with the execution mode of system property {@code calcite.avatica.execution}. */
+    public SimpleCalciteAvaticaServer() {
+        this(ExecutionHandler.Mode.fromSystemProperty());
+    }
+    
+    /** A server that runs requests as the mode says; see {@link ExecutionHandler}. */
+    public SimpleCalciteAvaticaServer(ExecutionHandler.Mode executionMode) {
+        this.executionMode = executionMode;
+    }
     
     public void start() throws Exception {
         final String[] args = {SimpleMetaFactory.class.getName()};
-        this.server = Main.start(args, 0, AvaticaProtobufHandler::new);
+        this.server = Main.start(args, 0, service -> {
+            ServerMetrics metrics = ServerMetrics.get();
+            handler = new ExecutionHandler(new AvaticaProtobufHandler(service, metrics), executionMode, metrics);
+            return handler;
+        });
     }
     
     public String getJdbcUrl() {
@@ -49,6 +67,55 @@ public class SimpleCalciteAvaticaServer {
             + ";serialization=" + Serialization.PROTOBUF.name();
     }
     
+    /** URL of a connection whose result frames and responses come encoded as given. */
+    public String getJdbcUrl(FrameEncoding.Frames frames, FrameEncoding.Compression compression) {
+        return "jdbc:avatica:remote:url=http://localhost:" + server.getPort()
+            + "/?frames=" + frames.name().toLowerCase(Locale.ROOT)
+            + "&compression=" + compression.name().toLowerCase(Locale.ROOT)
+            + ";serialization=" + Serialization.PROTOBUF.name()
+            + ";httpclient_impl=" + FrameEncoding.Client.class.getName();
+    }
+    
+    /** Columnar cache behind the CSV tables, with its hit-rate metrics. */
+    public ColumnarCsvCache getCsvCache() {
+        return CachedCsvSchemaFactory.cache();
+    }
+    
+    /** Statistics of the analysed CSV tables. */
+    public StatisticsStore getStatistics() {
+        return CachedCsvSchemaFactory.statistics();
+    }
+    
+    /** Prepared plans shared by all connections, with compile time saved and memory held. */
+    public PlanCache getPlanCache() {
+        return PlanCache.get();
+    }
+    
+    /** Timings of request phases and cache counters, also served at {@code /metrics} and over JMX. */
+    public ServerMetrics getMetrics() {
+        return ServerMetrics.get();
+    }
+    
+    /** Sizing of result frames, and the memory held by open cursors. */
+    public AdaptiveFrames getFrames() {
+        return AdaptiveFrames.get();
+    }
+    
+    /** Open connections and statements, their bounds, and the quotas of clients. */
+    public HandleCache getHandles() {
+        return HandleCache.get();
+    }
+    
+    /** Handler that decides which threads run requests. */
+    public ExecutionHandler getExecutionHandler() {
+        return handler;
+    }
+    
+    /** In-process join path inference over the served schema. */
+    public JoinPathService getJoinPathService() {
+        return JoinPathService.get();
+    }
+    
     public void stop() {
         if (server != null) {
             server.stop();
@@ -57,6 +124,9 @@ public class SimpleCalciteAvaticaServer {
     
     /** Factory that creates a Calcite-specific JDBC meta implementation. */
     public static class SimpleMetaFactory implements Meta.Factory {
+        // How often the join path service looks for changed CSV files
+        private static final long JOIN_GRAPH_CHECK_MILLIS = 1000;
+
         private static volatile JdbcMeta instance = null;
         
         private static JdbcMeta getInstance() {
@@ -79,7 +149,22 @@ public class SimpleCalciteAvaticaServer {
                                 "\"directory\": \"" + salesDir.getAbsolutePath() + "\"");
                             
                             info.setProperty("model", "inline:" + model);
-                            instance = new JdbcMeta("jdbc:calcite:", info);
+                            // The handle cache evicts, closing cursors too; JdbcMeta's own caches are a
+                            // backstop, bounded a little beyond it so that they never evict first
+                            backstop(info, JdbcMeta.ConnectionCacheSettings.MAX_CAPACITY.key(),
+                                JdbcMeta.ConnectionCacheSettings.EXPIRY_DURATION.key(),
+                                JdbcMeta.ConnectionCacheSettings.EXPIRY_UNIT.key(),
+                                HandleCache.DEFAULT_MAX_CONNECTIONS, HandleCache.DEFAULT_CONNECTION_IDLE_MILLIS);
+                            backstop(info, JdbcMeta.StatementCacheSettings.MAX_CAPACITY.key(),
+                                JdbcMeta.StatementCacheSettings.EXPIRY_DURATION.key(),
+                                JdbcMeta.StatementCacheSettings.EXPIRY_UNIT.key(),
+                                HandleCache.DEFAULT_MAX_STATEMENTS, HandleCache.DEFAULT_STATEMENT_IDLE_MILLIS);
+                            JoinPathService.register(
+                                new JoinPathService(info, "SALES", salesDir, JOIN_GRAPH_CHECK_MILLIS));
+                            // Connections share prepared plans through the plan cache
+                            ServerMetrics.get().install();
+                            instance = new InstrumentedJdbcMeta(PlanCache.Driver.connectString(), info,
+                                ServerMetrics.get(), AdaptiveFrames.get(), HandleCache.get());
                         } catch (SQLException | IOException e) {
                             throw new RuntimeException(e);
                         }
@@ -89,6 +174,15 @@ public class SimpleCalciteAvaticaServer {
             return instance;
         }
         
+        // Sets one of JdbcMeta's caches to hold twice the handle cache's bound, and to keep
+        // an idle entry until the handle cache has swept it at least once
+        private static void backstop(Properties info, String capacityKey, String durationKey, String unitKey,
+                int maxHandles, long idleMillis) {
+            info.setProperty(capacityKey, Integer.toString(2 * maxHandles));
+            info.setProperty(durationKey, Long.toString(idleMillis + 2 * HandleCache.SWEEP_MILLIS));
+            info.setProperty(unitKey, TimeUnit.MILLISECONDS.name());
+        }
+        
         private static String loadModelFromResource() throws IOException {
             try (InputStream in = SimpleMetaFactory.class.getResourceAsStream("/model.json")) {
                 if (in == null) {
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ANALYZE for the CSV tables: collects {@link TableStatistics} in one pass
+ * over a file, keeps them in memory and in a {@code NAME.csv.stats} sidecar,
+ * and brings them up to date when the file changes.
+ *
+ * <p>A file that has only grown by appended lines is refreshed by analysing
+ * the new lines and merging; any other change means analysing it again in
+ * full. Refreshes of stale statistics run in the background so that planning
+ * never waits for one; meanwhile the stale statistics are served and the
+ * row count scaled by the file's growth.
+ */
+public class StatisticsStore {
+    private final ColumnarCsvCache cache;
+    private final Map<String, File> tables = new ConcurrentHashMap<>();
+    private final Map<File, TableStatistics> statistics = new ConcurrentHashMap<>();
+    private final Map<File, Object> locks = new ConcurrentHashMap<>();
+    private final Set<File> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "csv-statistics");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long analyses;
+    private long incrementalAnalyses;
+
+    public StatisticsStore(ColumnarCsvCache cache) {
+        this.cache = cache;
+    }
+
+    /** Makes a table known by name to {@link #analyze(String)}. */
+    void register(String table, File file) {
+        tables.put(table, file);
+    }
+
+    /**
+     * Returns the statistics of the file, possibly of an earlier version of
+     * it (in which case a refresh is started), or null if it has never been
+     * analysed.
+     */
+    TableStatistics get(File file) {
+        TableStatistics stats = statistics.get(file);
+        if (stats == null) {
+            stats = TableStatistics.load(file);
+            if (stats == null) {
+                return null;
+            }
+            statistics.putIfAbsent(file, stats);
+        }
+        if (!stats.isCurrent(file) && refreshing.add(file)) {
+            refresher.execute(() -> {
+                try {
+                    analyze(file);
+                } catch (IOException | RuntimeException e) {
+                    // Keep serving the stale statistics
+                } finally {
+                    refreshing.remove(file);
+                }
+            });
+        }
+        return stats;
+    }
+
+    /** Analyses a table registered by a schema, looking it up case-insensitively if need be. */
+    public TableStatistics analyze(String table) throws IOException {
+        File file = tables.get(table);
+        if (file == null) {
+            for (Map.Entry<String, File> entry : tables.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(table)) {
+                    file = entry.getValue();
+                }
+            }
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("Unknown table: " + table);
+        }
+        return analyze(file);
+    }
+
+    /** Brings the statistics of the file up to date, and returns them. */
+    TableStatistics analyze(File file) throws IOException {
+        synchronized (locks.computeIfAbsent(file, f -> new Object())) {
+            long length = file.length();
+            long lastModified = file.lastModified();
+            TableStatistics old = statistics.get(file);
+            if (old == null) {
+                old = TableStatistics.load(file);
+            }
+            if (old != null && old.length == length && old.lastModified == lastModified) {
+                statistics.put(file, old);
+                return old;
+            }
+            // The checksum of the old version's bytes as they are now, and of the whole file
+            long[] checksums = TableStatistics.checksums(file,
+                old != null && old.length < length ? old.length : length, length);
+            long checksum = checksums[1];
+            TableStatistics result;
+            if (old != null && old.isPrefixOf(file, checksums[0])) {
+                TableStatistics.Collector collector = new TableStatistics.Collector(old.header);
+                try (MappedCsvScanner.SplitIterator splits = scanner().stream(file, old.length)) {
+                    while (splits.hasNext()) {
+                        collector.add(splits.next());
+                    }
+                }
+                result = old.append(collector.finish(length - old.length, lastModified, checksum), length,
+                    lastModified, checksum);
+                synchronized (this) {
+                    incrementalAnalyses++;
+                }
+            } else {
+                TableStatistics.Collector collector = new TableStatistics.Collector(CsvColumnarReader.readHeader(file));
+                if (length <= cache.getMaxBytes()) {
+                    collector.add(cache.get(file));
+                } else {
+                    try (MappedCsvScanner.SplitIterator splits =
+                             scanner().stream(file, null, Collections.emptyList())) {
+                        while (splits.hasNext()) {
+                            collector.add(splits.next());
+                        }
+                    }
+                }
+                result = collector.finish(length, lastModified, checksum);
+                synchronized (this) {
+                    analyses++;
+                }
+            }
+            statistics.put(file, result);
+            result.save(file);
+            return result;
+        }
+    }
+
+    private MappedCsvScanner scanner() {
+        MappedCsvScanner scanner = cache.getScanner();
+        return scanner != null ? scanner : new MappedCsvScanner(MappedCsvScanner.DEFAULT_SPLIT_BYTES, null);
+    }
+
+    /** Number of full passes over a file. */
+    public synchronized long getAnalyses() {
+        return analyses;
+    }
+
+    /** Number of refreshes that read only the lines appended to a file. */
+    public synchronized long getIncrementalAnalyses() {
+        return incrementalAnalyses;
+    }
+}
@@ -0,0 +1,596 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Statistics of one CSV file as of one version of it: the row count and, per
+ * column, the number of non-null values, a HyperLogLog sketch of the distinct
+ * values, the min/max, and a uniform sample of the values from which an
+ * equi-depth histogram is drawn. Values are in the representation used by
+ * {@link ZoneMap} and {@link ColumnPredicate}: Long, Double or String.
+ *
+ * <p>Sketches and samples merge, so statistics of rows appended to a file
+ * can be folded into those of the file's earlier version
+ * ({@link #append}). Whether the file has only been appended to is judged
+ * by a CRC of all the bytes analysed, so checking reads them once more
+ * (without parsing them). Persisted in a {@code NAME.csv.stats} sidecar.
+ */
+final class TableStatistics {
+    static final int SAMPLE_SIZE = 4096;
+    static final int BUCKETS = 32;
+
+    // Version 2: the checksum covers the whole analysed file, not its last 4 KB
+    private static final int MAGIC = 0x53544132;
+
+    final long length;
+    final long lastModified;
+    final long checksum;
+    final long rowCount;
+    final ColumnarTable header;
+    final ColumnStatistics[] columns;
+
+    private TableStatistics(long length, long lastModified, long checksum, long rowCount, ColumnarTable header,
+            ColumnStatistics[] columns) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+        this.rowCount = rowCount;
+        this.header = header;
+        this.columns = columns;
+    }
+
+    /** Statistics of one column. */
+    static final class ColumnStatistics {
+        final HyperLogLog distinct;
+        final long nonNull;
+        final Object min;
+        final Object max;
+        // Uniform sample of the non-null values (NaN excluded), sorted
+        final Object[] sample;
+
+        ColumnStatistics(HyperLogLog distinct, long nonNull, Object min, Object max, Object[] sample) {
+            this.distinct = distinct;
+            this.nonNull = nonNull;
+            this.min = min;
+            this.max = max;
+            this.sample = sample;
+        }
+
+        long distinctCount() {
+            return Math.min(Math.round(distinct.estimate()), nonNull);
+        }
+
+        /** Bounds of {@link #BUCKETS} buckets of equal depth, or empty if there are no values. */
+        Object[] histogram() {
+            if (sample.length == 0) {
+                return sample;
+            }
+            Object[] bounds = new Object[BUCKETS + 1];
+            for (int i = 0; i <= BUCKETS; i++) {
+                bounds[i] = sample[(int) ((long) i * (sample.length - 1) / BUCKETS)];
+            }
+            return bounds;
+        }
+
+        /** Estimated fraction of the non-null values below (or, if inclusive, at most) the predicate's literal. */
+        double fractionBelow(ColumnPredicate predicate, boolean inclusive) {
+            Object[] bounds = histogram();
+            if (bounds.length == 0) {
+                return 0;
+            }
+            // Number of bounds below the literal
+            int below = 0;
+            while (below < bounds.length) {
+                int comparison = predicate.compare(bounds[below]);
+                if (comparison == ColumnPredicate.UNORDERED || comparison > 0 || (comparison == 0 && !inclusive)) {
+                    break;
+                }
+                below++;
+            }
+            if (below == 0) {
+                return 0;
+            }
+            if (below == bounds.length) {
+                return 1;
+            }
+            // The literal falls in bucket below - 1; interpolate within it
+            Object low = bounds[below - 1];
+            Object high = bounds[below];
+            double within = 0.5;
+            if (low instanceof Number && predicate.value instanceof Number) {
+                double lo = ((Number) low).doubleValue();
+                double hi = ((Number) high).doubleValue();
+                double value = ((Number) predicate.value).doubleValue();
+                within = hi > lo ? Math.max(0, Math.min(1, (value - lo) / (hi - lo))) : 1;
+            }
+            return (below - 1 + within) / BUCKETS;
+        }
+    }
+
+    /** Estimated number of rows in the file at {@code currentLength} bytes, scaling by growth since analysis. */
+    double estimateRowCount(long currentLength) {
+        if (currentLength == length || length <= 0) {
+            return rowCount;
+        }
+        return (double) rowCount * currentLength / length;
+    }
+
+    /** Whether the statistics describe the file as it is now. */
+    boolean isCurrent(File file) {
+        return length == file.length() && lastModified == file.lastModified();
+    }
+
+    /**
+     * Whether the file is the analysed version with lines appended: it is
+     * uncompressed, longer, its first {@link #length} bytes end a line, and
+     * they have the analysed version's checksum {@code prefixChecksum} (see
+     * {@link #checksums}).
+     */
+    boolean isPrefixOf(File file, long prefixChecksum) throws IOException {
+        return !file.getName().endsWith(".gz") && length > 0 && file.length() > length
+            && endsLine(file, length) && prefixChecksum == checksum;
+    }
+
+    /** Estimated fraction of rows satisfying the predicate. */
+    double selectivity(ColumnPredicate predicate) {
+        if (rowCount == 0) {
+            return 0;
+        }
+        ColumnStatistics column = columns[predicate.column];
+        double nonNull = (double) column.nonNull / rowCount;
+        double distinct = Math.max(1, column.distinctCount());
+        switch (predicate.op) {
+            case EQ:
+                return column.min == null || !predicate.mayMatch(column.min, column.max) ? 0 : nonNull / distinct;
+            case NE:
+                return nonNull * (1 - 1 / distinct);
+            case LT:
+                return nonNull * column.fractionBelow(predicate, false);
+            case LE:
+                return nonNull * column.fractionBelow(predicate, true);
+            case GT:
+                return nonNull * (1 - column.fractionBelow(predicate, true));
+            default:
+                return nonNull * (1 - column.fractionBelow(predicate, false));
+        }
+    }
+
+    /** Estimated number of distinct combinations of values of the given columns. */
+    double distinctCount(int[] columns) {
+        double distinct = 1;
+        for (int column : columns) {
+            // A null is one more distinct value
+            ColumnStatistics statistics = this.columns[column];
+            distinct *= statistics.distinctCount() + (statistics.nonNull < rowCount ? 1 : 0);
+        }
+        return Math.min(distinct, rowCount);
+    }
+
+    /** Statistics of a file that is this one's with the rows of {@code tail} appended. */
+    TableStatistics append(TableStatistics tail, long length, long lastModified, long checksum) {
+        ColumnStatistics[] merged = new ColumnStatistics[columns.length];
+        for (int c = 0; c < merged.length; c++) {
+            ColumnStatistics a = columns[c];
+            ColumnStatistics b = tail.columns[c];
+            HyperLogLog distinct = a.distinct.copy();
+            distinct.merge(b.distinct);
+            merged[c] = new ColumnStatistics(distinct, a.nonNull + b.nonNull, extreme(a.min, b.min, -1),
+                extreme(a.max, b.max, 1), mergeSamples(a, b));
+        }
+        return new TableStatistics(length, lastModified, checksum, rowCount + tail.rowCount, header, merged);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object extreme(Object a, Object b, int sign) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return Integer.signum(((Comparable) a).compareTo(b)) == sign ? a : b;
+    }
+
+    // A uniform sample of the union: each slot drawn from a's or b's sample in
+    // proportion to the number of values each stands for
+    static Object[] mergeSamples(ColumnStatistics a, ColumnStatistics b) {
+        List<Object> left = new ArrayList<>(Arrays.asList(a.sample));
+        List<Object> right = new ArrayList<>(Arrays.asList(b.sample));
+        Random random = new Random(a.nonNull * 31 + b.nonNull);
+        Collections.shuffle(left, random);
+        Collections.shuffle(right, random);
+        int size = Math.min(SAMPLE_SIZE, left.size() + right.size());
+        double leftWeight = (double) a.nonNull / Math.max(1, a.nonNull + b.nonNull);
+        List<Object> sample = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (sample.size() < size) {
+            boolean fromLeft = j == right.size() || (i < left.size() && random.nextDouble() < leftWeight);
+            sample.add(fromLeft ? left.get(i++) : right.get(j++));
+        }
+        Object[] sorted = sample.toArray();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder().append(rowCount).append(" rows");
+        for (int c = 0; c < columns.length; c++) {
+            buf.append(c == 0 ? "; " : ", ").append(header.names.get(c)).append(' ')
+                .append(columns[c].distinctCount()).append(" distinct");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Gathers statistics in one pass over the rows of a file, given as
+     * consecutive parts (the cached table, or the splits of a scan).
+     */
+    static final class Collector {
+        private final ColumnarTable header;
+        private final HyperLogLog[] distinct;
+        private final long[] nonNull;
+        private final Object[] min;
+        private final Object[] max;
+        private final Object[][] samples;
+        private final int[] sampleSizes;
+        private final Random random = new Random(0);
+        private long rowCount;
+
+        Collector(ColumnarTable header) {
+            int n = header.columns.size();
+            this.header = header;
+            this.distinct = new HyperLogLog[n];
+            this.nonNull = new long[n];
+            this.min = new Object[n];
+            this.max = new Object[n];
+            this.samples = new Object[n][SAMPLE_SIZE];
+            this.sampleSizes = new int[n];
+            for (int c = 0; c < n; c++) {
+                distinct[c] = new HyperLogLog();
+            }
+        }
+
+        void add(ColumnarTable part) {
+            for (int c = 0; c < distinct.length; c++) {
+                ColumnarTable.Column column = part.columns.get(c);
+                if (column instanceof ColumnarTable.StringColumn) {
+                    addStrings(c, (ColumnarTable.StringColumn) column, part.rowCount);
+                } else if (column instanceof ColumnarTable.DoubleColumn) {
+                    addDoubles(c, (ColumnarTable.DoubleColumn) column, part.rowCount);
+                } else {
+                    addLongs(c, column, part.rowCount);
+                }
+            }
+            rowCount += part.rowCount;
+        }
+
+        private void addStrings(int c, ColumnarTable.StringColumn column, int rows) {
+            // Each dictionary entry occurs in the part
+            for (String value : column.dictionary) {
+                distinct[c].add(HyperLogLog.hash(value));
+                min[c] = extreme(min[c], value, -1);
+                max[c] = extreme(max[c], value, 1);
+            }
+            for (int row = 0; row < rows; row++) {
+                if (column.isNull(row)) continue;
+                int slot = slot(c);
+                if (slot >= 0) {
+                    samples[c][slot] = column.dictionary[column.codes[row]];
+                }
+            }
+        }
+
+        private void addDoubles(int c, ColumnarTable.DoubleColumn column, int rows) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int row = 0; row < rows; row++) {
+                if (column.isNull(row)) continue;
+                double value = column.values[row];
+                distinct[c].add(HyperLogLog.hash(value));
+                if (Double.isNaN(value)) {
+                    nonNull[c]++;
+                    continue;
+                }
+                lo = Math.min(lo, value);
+                hi = Math.max(hi, value);
+                int slot = slot(c);
+                if (slot >= 0) {
+                    samples[c][slot] = value;
+                }
+            }
+            if (lo <= hi) {
+                min[c] = extreme(min[c], lo, -1);
+                max[c] = extreme(max[c], hi, 1);
+            }
+        }
+
+        private void addLongs(int c, ColumnarTable.Column column, int rows) {
+            long lo = Long.MAX_VALUE;
+            long hi = Long.MIN_VALUE;
+            for (int row = 0; row < rows; row++) {
+                if (column.isNull(row)) continue;
+                long value;
+                if (column instanceof ColumnarTable.IntColumn) {
+                    value = ((ColumnarTable.IntColumn) column).values[row];
+                } else if (column instanceof ColumnarTable.LongColumn) {
+                    value = ((ColumnarTable.LongColumn) column).values[row];
+                } else {
+                    value = ((ColumnarTable.BooleanColumn) column).values[row] ? 1 : 0;
+                }
+                distinct[c].add(HyperLogLog.hash(value));
+                lo = Math.min(lo, value);
+                hi = Math.max(hi, value);
+                int slot = slot(c);
+                if (slot >= 0) {
+                    samples[c][slot] = value;
+                }
+            }
+            if (lo <= hi) {
+                min[c] = extreme(min[c], lo, -1);
+                max[c] = extreme(max[c], hi, 1);
+            }
+        }
+
+        // Counts a value and returns the sample slot it replaces, or -1 (reservoir sampling)
+        private int slot(int c) {
+            long seen = ++nonNull[c];
+            if (sampleSizes[c] < SAMPLE_SIZE) {
+                return sampleSizes[c]++;
+            }
+            long j = (long) (random.nextDouble() * seen);
+            return j < SAMPLE_SIZE ? (int) j : -1;
+        }
+
+        TableStatistics finish(long length, long lastModified, long checksum) {
+            ColumnStatistics[] columns = new ColumnStatistics[distinct.length];
+            for (int c = 0; c < columns.length; c++) {
+                Object[] sample = Arrays.copyOf(samples[c], sampleSizes[c]);
+                Arrays.sort(sample);
+                columns[c] = new ColumnStatistics(distinct[c], nonNull[c], min[c], max[c], sample);
+            }
+            return new TableStatistics(length, lastModified, checksum, rowCount, header, columns);
+        }
+    }
+
+    /** HyperLogLog distinct-count sketch with 2^12 registers (about 1.6% standard error). */
+    static final class HyperLogLog {
+        private static final int P = 12;
+        private static final int M = 1 << P;
+        private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+        final byte[] registers;
+
+        HyperLogLog() {
+            this(new byte[M]);
+        }
+
+        private HyperLogLog(byte[] registers) {
+            this.registers = registers;
+        }
+
+        void add(long hash) {
+            int index = (int) (hash >>> (64 - P));
+            int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < M; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+        }
+
+        HyperLogLog copy() {
+            return new HyperLogLog(registers.clone());
+        }
+
+        double estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) zeros++;
+            }
+            double estimate = ALPHA * M * M / sum;
+            // Linear counting while many registers are still empty
+            return estimate <= 2.5 * M && zeros > 0 ? M * Math.log((double) M / zeros) : estimate;
+        }
+
+        static long hash(long value) {
+            value ^= value >>> 33;
+            value *= 0xff51afd7ed558ccdL;
+            value ^= value >>> 33;
+            value *= 0xc4ceb9fe1a85ec53L;
+            value ^= value >>> 33;
+            return value;
+        }
+
+        static long hash(double value) {
+            // 0.0 and -0.0 are the same value in SQL
+            return hash(Double.doubleToLongBits(value == 0 ? 0.0 : value));
+        }
+
+        static long hash(String value) {
+            long h = 1125899906842597L;
+            for (int i = 0; i < value.length(); i++) {
+                h = 31 * h + value.charAt(i);
+            }
+            return hash(h);
+        }
+    }
+
+    /**
+     * CRCs of the first {@code prefix} and the first {@code length} bytes of
+     * the file, in one pass: the checksum of the analysed version to compare
+     * and that of the version being analysed.
+     */
+    static long[] checksums(File file, long prefix, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            update(crc, in, buffer, prefix);
+            long atPrefix = crc.getValue();
+            update(crc, in, buffer, length - prefix);
+            return new long[] {atPrefix, crc.getValue()};
+        }
+    }
+
+    private static void update(CRC32 crc, InputStream in, byte[] buffer, long bytes) throws IOException {
+        while (bytes > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+            if (n < 0) {
+                throw new EOFException("File shrank while being checksummed");
+            }
+            crc.update(buffer, 0, n);
+            bytes -= n;
+        }
+    }
+
+    private static boolean endsLine(File file, long length) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(length - 1);
+            return in.read() == '\n';
+        }
+    }
+
+    static File sidecar(File file) {
+        return new File(file.getPath() + ".stats");
+    }
+
+    /** Reads the sidecar of {@code file}, current or not, or returns null if it is missing or unreadable. */
+    static TableStatistics load(File file) {
+        File sidecar = sidecar(file);
+        if (!sidecar.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(sidecar.toPath())))) {
+            if (in.readInt() != MAGIC) return null;
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            long checksum = in.readLong();
+            long rowCount = in.readLong();
+            int n = in.readInt();
+            List<String> names = new ArrayList<>();
+            List<CsvColumnarReader.ColumnBuilder> builders = new ArrayList<>();
+            ColumnStatistics[] columns = new ColumnStatistics[n];
+            for (int c = 0; c < n; c++) {
+                names.add(in.readUTF());
+                builders.add(new CsvColumnarReader.ColumnBuilder(ColumnarTable.Type.valueOf(in.readUTF())));
+                long nonNull = in.readLong();
+                byte[] registers = new byte[HyperLogLog.M];
+                in.readFully(registers);
+                Object min = readValue(in);
+                Object max = readValue(in);
+                Object[] sample = new Object[in.readInt()];
+                for (int i = 0; i < sample.length; i++) {
+                    sample[i] = readValue(in);
+                }
+                columns[c] = new ColumnStatistics(new HyperLogLog(registers), nonNull, min, max, sample);
+            }
+            return new TableStatistics(length, lastModified, checksum, rowCount,
+                CsvColumnarReader.build(names, builders, 0), columns);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of {@code file}. Best effort: a read-only directory
+     * only means the statistics are collected again by the next process.
+     */
+    void save(File file) {
+        Path target = sidecar(file).toPath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), file.getName(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeLong(checksum);
+                out.writeLong(rowCount);
+                out.writeInt(columns.length);
+                for (int c = 0; c < columns.length; c++) {
+                    ColumnStatistics column = columns[c];
+                    out.writeUTF(header.names.get(c));
+                    out.writeUTF(header.columns.get(c).type.name());
+                    out.writeLong(column.nonNull);
+                    out.write(column.distinct.registers);
+                    writeValue(out, column.min);
+                    writeValue(out, column.max);
+                    out.writeInt(column.sample.length);
+                    for (Object value : column.sample) {
+                        writeValue(out, value);
+                    }
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Long) {
+            out.writeByte(1);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(2);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            // writeUTF is limited to 64 KB
+            String string = (String) value;
+            out.writeByte(3);
+            out.writeUTF(string.length() > 16384 ? string.substring(0, 16384) : string);
+        } else {
+            out.writeByte(0);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case 1:
+                return in.readLong();
+            case 2:
+                return in.readDouble();
+            case 3:
+                return in.readUTF();
+            default:
+                return null;
+        }
+    }
+}
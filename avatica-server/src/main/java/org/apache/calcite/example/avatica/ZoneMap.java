@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The blocks (scan splits) of a CSV file with the min/max of every column in
+ * each, so that a filtered scan skips blocks no row of which can match
+ * without parsing them. Kept in a sidecar file, {@code NAME.csv.zones} next
+ * to the data, and valid while the data file keeps the size and modification
+ * time it was built from.
+ */
+final class ZoneMap {
+    private static final int MAGIC = 0x5a4f4e31;
+
+    // Tags of a column's bounds in the sidecar
+    private static final byte UNKNOWN = 0;
+    private static final byte EMPTY = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    final long length;
+    final long lastModified;
+    final List<long[]> blocks;
+    // [block][column] = {min, max} as Long, Double or String; null if not
+    // known, {null, null} if the block has only nulls in the column
+    private final Object[][][] bounds;
+
+    ZoneMap(long length, long lastModified, List<long[]> blocks, Object[][][] bounds) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.blocks = blocks;
+        this.bounds = bounds;
+    }
+
+    /** Whether some row of block {@code block} may satisfy all {@code filters}. */
+    boolean mayMatch(int block, List<ColumnPredicate> filters) {
+        for (ColumnPredicate filter : filters) {
+            Object[] column = bounds[block][filter.column];
+            if (column != null && !filter.mayMatch(column[0], column[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bounds of each column of a parsed block, in the form kept per block. */
+    static Object[][] bounds(ColumnarTable block) {
+        Object[][] bounds = new Object[block.columns.size()][];
+        for (int c = 0; c < bounds.length; c++) {
+            ColumnarTable.Column column = block.columns.get(c);
+            if (column != null) {
+                bounds[c] = bounds(column, block.rowCount);
+            }
+        }
+        return bounds;
+    }
+
+    private static Object[] bounds(ColumnarTable.Column column, int rows) {
+        if (column instanceof ColumnarTable.StringColumn) {
+            // Every dictionary entry occurs in the block
+            String min = null;
+            String max = null;
+            for (String value : ((ColumnarTable.StringColumn) column).dictionary) {
+                if (min == null || value.compareTo(min) < 0) min = value;
+                if (max == null || value.compareTo(max) > 0) max = value;
+            }
+            return new Object[] {min, max};
+        }
+        if (column instanceof ColumnarTable.DoubleColumn) {
+            double[] values = ((ColumnarTable.DoubleColumn) column).values;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            boolean any = false;
+            for (int row = 0; row < rows; row++) {
+                if (column.isNull(row)) continue;
+                // NaN matches <>, which bounds cannot express
+                if (Double.isNaN(values[row])) return null;
+                min = Math.min(min, values[row]);
+                max = Math.max(max, values[row]);
+                any = true;
+            }
+            return any ? new Object[] {min, max} : new Object[2];
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        boolean any = false;
+        for (int row = 0; row < rows; row++) {
+            if (column.isNull(row)) continue;
+            long value;
+            if (column instanceof ColumnarTable.IntColumn) {
+                value = ((ColumnarTable.IntColumn) column).values[row];
+            } else if (column instanceof ColumnarTable.LongColumn) {
+                value = ((ColumnarTable.LongColumn) column).values[row];
+            } else {
+                value = ((ColumnarTable.BooleanColumn) column).values[row] ? 1 : 0;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            any = true;
+        }
+        return any ? new Object[] {min, max} : new Object[2];
+    }
+
+    static File sidecar(File file) {
+        return new File(file.getPath() + ".zones");
+    }
+
+    /** Reads the sidecar of {@code file}, or returns null if it is missing, stale or unreadable. */
+    static ZoneMap load(File file) {
+        File sidecar = sidecar(file);
+        if (!sidecar.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(sidecar.toPath())))) {
+            if (in.readInt() != MAGIC) return null;
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            if (length != file.length() || lastModified != file.lastModified()) return null;
+            int blockCount = in.readInt();
+            int columnCount = in.readInt();
+            List<long[]> blocks = new ArrayList<>();
+            Object[][][] bounds = new Object[blockCount][columnCount][];
+            for (int b = 0; b < blockCount; b++) {
+                blocks.add(new long[] {in.readLong(), in.readLong()});
+                for (int c = 0; c < columnCount; c++) {
+                    byte tag = in.readByte();
+                    switch (tag) {
+                        case UNKNOWN:
+                            break;
+                        case EMPTY:
+                            bounds[b][c] = new Object[2];
+                            break;
+                        case LONG:
+                            bounds[b][c] = new Object[] {in.readLong(), in.readLong()};
+                            break;
+                        case DOUBLE:
+                            bounds[b][c] = new Object[] {in.readDouble(), in.readDouble()};
+                            break;
+                        case STRING:
+                            bounds[b][c] = new Object[] {in.readUTF(), in.readUTF()};
+                            break;
+                        default:
+                            return null;
+                    }
+                }
+            }
+            return new ZoneMap(length, lastModified, blocks, bounds);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of {@code file}. Best effort: a read-only directory
+     * only means the map is rebuilt by the next process.
+     */
+    void save(File file) {
+        Path target = sidecar(file).toPath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), file.getName(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeInt(bounds.length);
+                out.writeInt(bounds.length == 0 ? 0 : bounds[0].length);
+                for (int b = 0; b < bounds.length; b++) {
+                    out.writeLong(blocks.get(b)[0]);
+                    out.writeLong(blocks.get(b)[1]);
+                    for (Object[] column : bounds[b]) {
+                        write(out, column);
+                    }
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Object[] column) throws IOException {
+        // writeUTF is limited to 64 KB; longer strings are left unbounded
+        if (column == null || (column[0] instanceof String
+                && (((String) column[0]).length() > 16384 || ((String) column[1]).length() > 16384))) {
+            out.writeByte(UNKNOWN);
+        } else if (column[0] == null) {
+            out.writeByte(EMPTY);
+        } else if (column[0] instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) column[0]);
+            out.writeLong((Long) column[1]);
+        } else if (column[0] instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) column[0]);
+            out.writeDouble((Double) column[1]);
+        } else {
+            out.writeByte(STRING);
+            out.writeUTF((String) column[0]);
+            out.writeUTF((String) column[1]);
+        }
+    }
+}
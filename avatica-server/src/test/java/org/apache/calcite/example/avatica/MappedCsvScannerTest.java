@@ -0,0 +1,405 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.QueryProvider;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that {@link MappedCsvScanner}, with splits far smaller than the
+ * file, returns exactly what {@link CsvColumnarReader} reads in one pass.
+ */
+public class MappedCsvScannerTest {
+    private static final String HEADER = "ID:int,BIG:long,RATIO:double,FLAG:boolean,DAY:date,NAME:string";
+    private static final long SPLIT_BYTES = 512;
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("csv-scan");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testParallelReadMatchesReader() throws Exception {
+        File file = write("rows.csv", rows(2000));
+        MappedCsvScanner scanner = new MappedCsvScanner(SPLIT_BYTES, null);
+        assertTrue(scanner.splits(file, 0).size() > 100);
+        assertSameRows(CsvColumnarReader.read(file), scanner.read(file));
+    }
+
+    @Test
+    public void testStreamMatchesReader() throws Exception {
+        File file = write("rows.csv", rows(2000));
+        MappedCsvScanner scanner = new MappedCsvScanner(SPLIT_BYTES, null);
+        ColumnarTable expected = CsvColumnarReader.read(file);
+        // Once to build the zone map, once through it
+        for (int pass = 0; pass < 2; pass++) {
+            assertSameRows(expected, streamed(scanner, file));
+        }
+
+        // From a line start onwards, as for appended rows
+        List<long[]> splits = scanner.splits(file, 0);
+        long from = splits.get(splits.size() / 2)[0];
+        ColumnarTable tail;
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, from)) {
+            tail = concat(file, parts);
+        }
+        int skipped = expected.rowCount - tail.rowCount;
+        assertTrue(skipped > 0 && tail.rowCount > 0);
+        for (int row = 0; row < tail.rowCount; row++) {
+            assertArrayEquals("row " + row, expected.row(skipped + row), tail.row(row));
+        }
+    }
+
+    @Test
+    public void testFastPathsMatchReader() throws Exception {
+        // Edge values of each fast path, and values only the reader's parsers accept
+        String csv = HEADER + "\n"
+            + " 42 ,+7,1e3,TRUE,2001-01-01,plain\n"
+            + "-2147483648,1234567890123456789,12345678901234567,True,\"2004-02-29\",\n"
+            + "\"7\",-9,-0.5, false ,,\"a \"\"quoted\"\", name\"\n"
+            + "2147483647,-999999999999999999,.5,yes,1999-12-31,\"x\"\n"
+            + "+3,,0.1,,2000-01-01,\n"
+            + "5\n"
+            + "6,60,6.000000000000001,false,2024-12-31,\"last\"\r\n";
+        File file = write("edges.csv", csv);
+        // Splits of about a line each, so every value is parsed at a split's edge too
+        MappedCsvScanner scanner = new MappedCsvScanner(16, null);
+        ColumnarTable expected = CsvColumnarReader.read(file);
+        assertEquals(7, expected.rowCount);
+        assertSameRows(expected, scanner.read(file));
+        assertSameRows(expected, streamed(scanner, file));
+    }
+
+    @Test
+    public void testCharAndUnknownTypesReadAsStrings() throws Exception {
+        // As in the CSV adapter: char is a type of its own, and an unknown type is a string
+        String csv = "ID:int,GRADE:char,NOTE:text\n"
+            + "1,a,first\n"
+            + "2,,\n"
+            + "3,\"b\",\"third, quoted\"\n";
+        File file = write("grades.csv", csv);
+        ColumnarTable expected = CsvColumnarReader.read(file);
+        assertEquals(ColumnarTable.Type.CHAR, expected.columns.get(1).type);
+        assertEquals(ColumnarTable.Type.STRING, expected.columns.get(2).type);
+        assertArrayEquals(new Object[] {1, "a", "first"}, expected.row(0));
+        // Empty fields of string columns are empty strings, not nulls
+        assertArrayEquals(new Object[] {2, "", ""}, expected.row(1));
+        assertArrayEquals(new Object[] {3, "b", "third, quoted"}, expected.row(2));
+        assertEquals(SqlTypeName.CHAR, expected.columns.get(1).type.sqlType);
+        MappedCsvScanner scanner = new MappedCsvScanner(16, null);
+        assertSameRows(expected, scanner.read(file));
+        assertSameRows(expected, streamed(scanner, file));
+    }
+
+    @Test
+    public void testTranscodedGzipMatchesReader() throws Exception {
+        File transcoded = directory.resolve("transcoded").toFile();
+        MappedCsvScanner scanner = new MappedCsvScanner(SPLIT_BYTES, transcoded);
+        File file = gzip("rows.csv.gz", rows(1000));
+        assertSameRows(CsvColumnarReader.read(file), scanner.read(file));
+        assertSameRows(CsvColumnarReader.read(file), streamed(scanner, file));
+        assertEquals(1, copies(transcoded));
+
+        // A changed original gets a new copy, which replaces the old one
+        file = gzip("rows.csv.gz", rows(1500));
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        ColumnarTable table = scanner.read(file);
+        assertEquals(1500, table.rowCount);
+        assertSameRows(CsvColumnarReader.read(file), table);
+        assertEquals(1, copies(transcoded));
+    }
+
+    @Test
+    public void testQuotedLineBreaks() throws Exception {
+        StringBuilder csv = new StringBuilder("ID:int,NOTE:string\n");
+        for (int i = 0; i < 200; i++) {
+            csv.append(i).append(",\"line one\nline two, ").append(i).append("\"\n");
+        }
+        File file = write("notes.csv", csv.toString());
+
+        // Within a split they are read as the reader does
+        assertSameRows(CsvColumnarReader.read(file), new MappedCsvScanner(1 << 20, null).read(file));
+
+        // A split that would end inside one fails the scan rather than misreading
+        // rows: 8 bytes into a record is before its quoted line break
+        MappedCsvScanner scanner = new MappedCsvScanner(8, null);
+        try {
+            scanner.read(file);
+            fail("Splits end inside quoted fields");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("parallelScan"));
+        }
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, null, Collections.emptyList())) {
+            concat(file, parts);
+            fail("Splits end inside quoted fields");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("parallelScan"));
+        }
+    }
+
+    @Test
+    public void testTableLargerThanCacheStreamsSplits() throws Exception {
+        File file = write("rows.csv", rows(2000));
+        ColumnarCsvCache cache = new ColumnarCsvCache(file.length() / 4);
+        cache.setScanner(new MappedCsvScanner(SPLIT_BYTES, null));
+        CachedCsvTable table = new CachedCsvTable(file, cache, new StatisticsStore(cache));
+        ColumnarTable expected = CsvColumnarReader.read(file);
+
+        int[] projects = {5, 0, 3};
+        int rows = 0;
+        Enumerator<Object[]> enumerator = table.scan(context(), new ArrayList<>(), projects).enumerator();
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                rows = 0;
+                while (enumerator.moveNext()) {
+                    Object[] row = expected.row(rows++);
+                    assertArrayEquals(new Object[] {row[5], row[0], row[3]}, enumerator.current());
+                }
+                // Resetting restarts the stream
+                enumerator.reset();
+            }
+        } finally {
+            enumerator.close();
+        }
+        assertEquals(expected.rowCount, rows);
+        // Streamed, not cached
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testZoneMapsSkipSplits() throws Exception {
+        File file = write("rows.csv", rows(2000));
+        MappedCsvScanner scanner = new MappedCsvScanner(SPLIT_BYTES, null);
+        ColumnarTable header = CsvColumnarReader.readHeader(file);
+        // IDs ascend through the file, so only the last splits hold IDs from 1800
+        List<ColumnPredicate> filters = Collections.singletonList(
+            ColumnPredicate.of(id(SqlStdOperatorTable.GREATER_THAN_OR_EQUAL, 1800), header));
+        boolean[] columns = new boolean[header.columns.size()];
+        columns[0] = true;
+
+        // Without a zone map every split is parsed, and the map built on the way
+        assertFalse(ZoneMap.sidecar(file).exists());
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, columns, filters)) {
+            ColumnarTable all = concat(file, parts);
+            assertEquals(2000, all.rowCount);
+            assertEquals(0, parts.getSkipped());
+        }
+        assertTrue(ZoneMap.sidecar(file).exists());
+
+        // The sidecar reads back with the blocks it was built from
+        ZoneMap zones = ZoneMap.load(file);
+        List<long[]> splits = scanner.splits(file, 0);
+        assertEquals(splits.size(), zones.blocks.size());
+        int skippable = 0;
+        for (int block = 0; block < splits.size(); block++) {
+            assertArrayEquals(new Object[] {splits.get(block)[0], splits.get(block)[1]},
+                new Object[] {zones.blocks.get(block)[0], zones.blocks.get(block)[1]});
+            if (!zones.mayMatch(block, filters)) {
+                skippable++;
+            }
+        }
+        assertTrue(zones.mayMatch(splits.size() - 1, filters));
+        assertFalse(zones.mayMatch(0, filters));
+
+        // With it the splits before ID 1800 are skipped; rows of the splits
+        // read are returned whether they match or not
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, columns, filters)) {
+            List<ColumnarTable> list = new ArrayList<>();
+            while (parts.hasNext()) {
+                list.add(parts.next());
+            }
+            assertEquals(skippable, parts.getSkipped());
+            int rows = 0;
+            for (ColumnarTable part : list) {
+                rows += part.rowCount;
+                // Only the flagged column is parsed
+                assertEquals(null, part.columns.get(5));
+            }
+            ColumnarTable last = list.get(list.size() - 1);
+            int first = (Integer) list.get(0).columns.get(0).get(0);
+            assertTrue(first > 0 && first <= 1800);
+            assertEquals(2000 - first, rows);
+            assertEquals(1999, last.columns.get(0).get(last.rowCount - 1));
+        }
+
+        // No block holds an ID above 5000
+        List<ColumnPredicate> none = Collections.singletonList(
+            ColumnPredicate.of(id(SqlStdOperatorTable.GREATER_THAN, 5000), header));
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, columns, none)) {
+            assertFalse(parts.hasNext());
+            assertEquals(splits.size(), parts.getSkipped());
+        }
+
+        // A table larger than its cache streams through the same zone map
+        ColumnarCsvCache cache = new ColumnarCsvCache(file.length() / 4);
+        cache.setScanner(scanner);
+        CachedCsvTable table = new CachedCsvTable(file, cache, new StatisticsStore(cache));
+        List<RexNode> pushed = new ArrayList<>();
+        pushed.add(id(SqlStdOperatorTable.GREATER_THAN_OR_EQUAL, 1800));
+        Enumerator<Object[]> enumerator = table.scan(context(), pushed, new int[] {0}).enumerator();
+        int rows = 0;
+        try {
+            while (enumerator.moveNext()) {
+                assertEquals(1800 + rows++, enumerator.current()[0]);
+            }
+        } finally {
+            enumerator.close();
+        }
+        assertEquals(200, rows);
+        assertTrue(pushed.isEmpty());
+
+        // Appending to the file invalidates the sidecar
+        Files.write(file.toPath(), "2000,,,,2010-01-01,\"more\"\n".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+        assertEquals(null, ZoneMap.load(file));
+    }
+
+    // One row per line, covering the fast paths and nulls of every column type
+    private static String rows(int count) {
+        StringBuilder csv = new StringBuilder(HEADER).append('\n');
+        LocalDate day = LocalDate.of(2000, 1, 1);
+        for (int i = 0; i < count; i++) {
+            csv.append(i).append(',')
+                .append(i % 11 == 0 ? "" : Long.toString(i * 1_000_000_007L)).append(',')
+                .append(i % 7 == 0 ? "" : (i - 1000) + ".25").append(',')
+                .append(i % 3 == 0 ? "true" : i % 3 == 1 ? "FALSE" : "").append(',')
+                .append(day.plusDays(i)).append(',')
+                .append('"').append("name ").append(i % 50).append(", \"\"").append(i % 5).append("\"\"\"\n");
+        }
+        return csv.toString();
+    }
+
+    // ID op value, over the table's row type
+    private static RexNode id(SqlOperator op, int value) {
+        RexBuilder rexBuilder = new RexBuilder(new JavaTypeFactoryImpl());
+        RelDataType type = rexBuilder.getTypeFactory().createSqlType(SqlTypeName.INTEGER);
+        return rexBuilder.makeCall(op, rexBuilder.makeInputRef(type, 0),
+            rexBuilder.makeExactLiteral(BigDecimal.valueOf(value)));
+    }
+
+    private File write(String name, String csv) throws IOException {
+        Path path = directory.resolve(name);
+        Files.write(path, csv.getBytes(StandardCharsets.UTF_8));
+        return path.toFile();
+    }
+
+    private File gzip(String name, String csv) throws IOException {
+        Path path = directory.resolve(name);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(path))) {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        }
+        return path.toFile();
+    }
+
+    private static int copies(File transcoded) {
+        File[] copies = transcoded.listFiles((dir, name) -> name.endsWith(".csv"));
+        return copies == null ? 0 : copies.length;
+    }
+
+    private static ColumnarTable streamed(MappedCsvScanner scanner, File file) throws IOException {
+        try (MappedCsvScanner.SplitIterator parts = scanner.stream(file, null, Collections.emptyList())) {
+            return concat(file, parts);
+        }
+    }
+
+    private static ColumnarTable concat(File file, MappedCsvScanner.SplitIterator parts) throws IOException {
+        List<ColumnarTable> list = new ArrayList<>();
+        while (parts.hasNext()) {
+            list.add(parts.next());
+        }
+        return ColumnarTable.concat(CsvColumnarReader.readHeader(file), list);
+    }
+
+    private static void assertSameRows(ColumnarTable expected, ColumnarTable actual) {
+        assertEquals(expected.names, actual.names);
+        assertEquals(expected.rowCount, actual.rowCount);
+        for (int row = 0; row < expected.rowCount; row++) {
+            assertArrayEquals("row " + row, expected.row(row), actual.row(row));
+        }
+        assertFalse(expected.rowCount == 0);
+    }
+
+    // Enough of a context for a scan without dynamic parameters
+    private static DataContext context() {
+        return new DataContext() {
+            @Override
+            public SchemaPlus getRootSchema() {
+                return null;
+            }
+
+            @Override
+            public JavaTypeFactory getTypeFactory() {
+                return null;
+            }
+
+            @Override
+            public QueryProvider getQueryProvider() {
+                return null;
+            }
+
+            @Override
+            public Object get(String name) {
+                return null;
+            }
+        };
+    }
+}
@@ -16,18 +16,32 @@
  */
 package org.apache.calcite.example.avatica;
 
+import org.apache.calcite.avatica.AvaticaConnection;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.ObjectName;
 
 /**
  * Test that demonstrates how to connect to the Avatica server
@@ -76,4 +90,371 @@ public class SimpleCalciteAvaticaTest {
             // assertTrue(results.contains("200:Theodore"));
         }
     }
+    
+    @Test
+    public void testRepeatedScansHitColumnarCache() throws Exception {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            long hits = server.getCsvCache().getHits();
+            for (int i = 0; i < 3; i++) {
+                ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM EMPS WHERE DEPTNO = 10");
+                assertTrue(rs.next());
+            }
+            assertTrue(server.getCsvCache().getHits() > hits);
+            assertTrue(server.getCsvCache().getBytes() > 0);
+        }
+    }
+    
+    @Test
+    public void testFiltersPushedIntoCsvScan() throws Exception {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+
+            // Wilma is in department 20 but too young; AGE nulls never match
+            ResultSet rs = statement.executeQuery(
+                "SELECT NAME FROM EMPS WHERE DEPTNO = 20 AND AGE > 10");
+            assertTrue(rs.next());
+            assertEquals("Eric", rs.getString(1));
+            assertTrue(!rs.next());
+
+            rs = statement.executeQuery(
+                "SELECT EMPNO FROM EMPS WHERE 'Vancouver' = CITY AND SLACKER = false ORDER BY NAME");
+            List<Integer> results = new ArrayList<>();
+            while (rs.next()) {
+                results.add(rs.getInt(1));
+            }
+            assertEquals(2, results.size());
+            assertEquals(130, (int) results.get(0));
+            assertEquals(110, (int) results.get(1));
+        }
+    }
+
+    @Test
+    public void testPlanCacheSharedAcrossConnections() throws Exception {
+        String sql = "SELECT COUNT(*) FROM EMPS WHERE DEPTNO = %d AND NAME <> 'Nobody'";
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery(String.format(sql, 10));
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+        }
+        long hits = server.getPlanCache().getHits();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            // Same shape, other literals, other connection: the plan is reused
+            ResultSet rs = statement.executeQuery(String.format(sql, 20));
+            assertTrue(rs.next());
+            assertEquals(2, rs.getInt(1));
+        }
+        assertTrue(server.getPlanCache().getHits() > hits);
+        assertTrue(server.getPlanCache().getSavedNanos() > 0);
+    }
+
+    @Test
+    public void testPlanCacheKeyedByHintsAndSettings() throws Exception {
+        // Hints are part of a statement's shape, other comments are not
+        assertNotEquals(PlanCache.Shape.of("SELECT /*+ a */ NAME FROM EMPS WHERE DEPTNO = 10").sql,
+            PlanCache.Shape.of("SELECT /*+ b */ NAME FROM EMPS WHERE DEPTNO = 10").sql);
+        assertEquals(PlanCache.Shape.of("SELECT NAME FROM EMPS WHERE DEPTNO = 10").sql,
+            PlanCache.Shape.of("SELECT NAME /* a */ FROM EMPS WHERE DEPTNO = 10").sql);
+
+        String sql = "SELECT name FROM EMPS WHERE DEPTNO = 10";
+        assertEquals(1, rows(jdbcUrl, sql).size());
+        // Identifiers keep their case with lex=JAVA, so the plan cached above does not apply
+        Properties info = new Properties();
+        info.setProperty("lex", "JAVA");
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, info);
+             Statement statement = connection.createStatement()) {
+            statement.executeQuery(sql);
+            fail("Column name should not be found with lex=JAVA");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'name'"));
+        }
+    }
+
+    @Test
+    public void testPooledExecution() throws Exception {
+        SimpleCalciteAvaticaServer pooled = new SimpleCalciteAvaticaServer(ExecutionHandler.Mode.POOLED);
+        pooled.start();
+        try (Connection connection = DriverManager.getConnection(pooled.getJdbcUrl());
+             Statement statement = connection.createStatement()) {
+            // Statement requests and metadata requests run on their own pools
+            ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM DEPTS");
+            assertTrue(rs.next());
+            assertEquals(3, rs.getInt(1));
+            assertTrue(connection.getMetaData().getTables(null, "SALES", "EMPS", null).next());
+            assertEquals(0, pooled.getExecutionHandler().getRejected());
+        } finally {
+            pooled.stop();
+        }
+    }
+
+    @Test
+    public void testMetricsScrapeAndJmx() throws Exception {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery("SELECT NAME FROM DEPTS");
+            while (rs.next()) {
+                rs.getString(1);
+            }
+        }
+        String url = jdbcUrl.substring(jdbcUrl.indexOf("http://"), jdbcUrl.indexOf(';')) + "/metrics";
+        String text;
+        try (InputStream in = new URL(url).openStream()) {
+            text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(text, text.contains("calcite_avatica_query_execute_seconds_count"));
+        assertTrue(text, text.contains("calcite_avatica_frame_rows{quantile=\"0.99\"}"));
+        assertTrue(text, text.contains("calcite_avatica_frame_wire_bytes{quantile=\"0.99\"}"));
+
+        Object executions = ManagementFactory.getPlatformMBeanServer().getAttribute(
+            new ObjectName(ServerMetrics.OBJECT_NAME), "query.execute.count");
+        assertTrue(((Number) executions).longValue() > 0);
+    }
+
+    @Test
+    public void testStreamedFramesWithinCursorCap() throws Exception {
+        AdaptiveFrames frames = server.getFrames();
+        frames.setStreaming(true);
+        // Too small for two rows: each frame carries one
+        frames.setMaxCursorBytes(1);
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery("SELECT NAME FROM EMPS");
+            int rows = 0;
+            while (rs.next()) {
+                rs.getString(1);
+                rows++;
+            }
+            assertEquals(5, rows);
+        } finally {
+            frames.setStreaming(false);
+            frames.setMaxCursorBytes(AdaptiveFrames.DEFAULT_MAX_CURSOR_BYTES);
+        }
+        assertEquals(0, frames.getHeldBytes());
+    }
+
+    @Test
+    public void testFramesWithinCursorCapInBytes() throws Exception {
+        AdaptiveFrames frames = server.getFrames();
+        long cap = 1024;
+        frames.setMaxCursorBytes(cap);
+        // 125 rows of equal width, a few dozen bytes each
+        String sql = "SELECT 'padding to widen the rows' AS PAD, e1.DEPTNO, e2.DEPTNO, e3.DEPTNO"
+            + " FROM EMPS e1, EMPS e2, EMPS e3";
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery(sql);
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+            }
+            assertEquals(125, rows);
+            AdaptiveFrames.Cursor cursor = null;
+            for (AdaptiveFrames.Cursor c : frames.getCursors()) {
+                if (c.getRowsSent() == rows) {
+                    cursor = c;
+                }
+            }
+            // Frames after the first are sized from the measured row width
+            assertTrue(frames.getCursors().toString(), cursor.getMaxFrameBytes() > 0);
+            assertTrue(cursor.toString(), cursor.getMaxFrameBytes() <= cap);
+        } finally {
+            frames.setMaxCursorBytes(AdaptiveFrames.DEFAULT_MAX_CURSOR_BYTES);
+        }
+    }
+
+    @Test
+    public void testColumnarGzipFramesMatchProtobuf() throws Exception {
+        String sql = "SELECT * FROM EMPS ORDER BY EMPNO";
+        String encodedUrl = server.getJdbcUrl(FrameEncoding.Frames.COLUMNAR, FrameEncoding.Compression.GZIP);
+        assertEquals(rows(jdbcUrl, sql), rows(encodedUrl, sql));
+        try (Connection connection = DriverManager.getConnection(encodedUrl)) {
+            // Metadata result sets are encoded too
+            assertTrue(connection.getMetaData().getTables(null, "SALES", "EMPS", null).next());
+        }
+
+        // Frames are sized from their protobuf bytes, not the fewer that are sent
+        String wide = "SELECT 'padding to widen the rows' AS PAD, e1.DEPTNO, e2.DEPTNO, e3.DEPTNO"
+            + " FROM EMPS e1, EMPS e2, EMPS e3";
+        assertEquals(rowBytes(jdbcUrl, wide), rowBytes(encodedUrl, wide), 1);
+    }
+
+    @Test
+    public void testAcceptEncodingNotGzipped() throws Exception {
+        String url = jdbcUrl.substring(jdbcUrl.indexOf("http://"), jdbcUrl.indexOf(';'));
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        // An error response, but one in plain protobuf
+        connection.getResponseCode();
+        assertEquals(null, connection.getContentEncoding());
+        connection.disconnect();
+    }
+
+    // Row width of the single frame of a query's cursor, as its frames are sized
+    private static double rowBytes(String url, String sql) throws Exception {
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery(sql);
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+            }
+            for (AdaptiveFrames.Cursor cursor : server.getFrames().getCursors()) {
+                if (cursor.getRowsSent() == rows) {
+                    return cursor.getRowBytes();
+                }
+            }
+            throw new AssertionError("No cursor sent " + rows + " rows: " + server.getFrames().getCursors());
+        }
+    }
+
+    private static List<String> rows(String url, String sql) throws Exception {
+        List<String> rows = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement statement = connection.createStatement()) {
+            ResultSet rs = statement.executeQuery(sql);
+            while (rs.next()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                    row.append(rs.getObject(i)).append('|');
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void testAbandonedStatementEvictedAndClientQuota() throws Exception {
+        HandleCache handles = server.getHandles();
+        List<HandleCache.Cause> causes = new CopyOnWriteArrayList<>();
+        HandleCache.EvictionListener listener = (handle, cause) -> causes.add(cause);
+        handles.addListener(listener);
+        String id;
+        try (Connection connection = DriverManager.getConnection(jdbcUrl)) {
+            id = connection.unwrap(AvaticaConnection.class).id;
+            HandleCache.Handle handle = null;
+            for (HandleCache.Handle h : handles.getConnections()) {
+                if (id.equals(h.getConnectionId())) {
+                    handle = h;
+                }
+            }
+            // Quotas are by address, whatever user the client names
+            String client = handle.getClient();
+            assertTrue(client, InetAddress.getByName(client).isLoopbackAddress());
+            int open = 0;
+            for (HandleCache.Handle h : handles.getConnections()) {
+                if (client.equals(h.getClient())) {
+                    open++;
+                }
+            }
+            handles.setMaxClientConnections(open);
+            Properties info = new Properties();
+            info.setProperty("user", "another-tab");
+            try {
+                DriverManager.getConnection(jdbcUrl, info).close();
+                fail("Another connection should be over the client's quota");
+            } catch (SQLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("quota"));
+            }
+            handles.setMaxClientConnections(HandleCache.DEFAULT_MAX_CLIENT_CONNECTIONS);
+
+            // Left open, as by a closed editor tab
+            Statement abandoned = connection.createStatement();
+            assertTrue(abandoned.executeQuery("SELECT NAME FROM EMPS").next());
+            assertEquals(1, handle.getStatementCount());
+            assertEquals(1, cursors(id));
+
+            handles.setStatementIdleMillis(0);
+            Thread.sleep(10);
+            handles.sweep();
+            handles.setStatementIdleMillis(HandleCache.DEFAULT_STATEMENT_IDLE_MILLIS);
+            assertEquals(0, handle.getStatementCount());
+            assertEquals(0, cursors(id));
+            assertTrue(causes.contains(HandleCache.Cause.IDLE));
+            assertTrue(handles.toString(), handles.toString().contains(id + " (" + client + "): 0 statements"));
+
+            // Listed over JMX only: anyone who can reach the HTTP port could use the ids
+            Object listed = ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName(ServerMetrics.OBJECT_NAME), "handles", new Object[0], new String[0]);
+            assertTrue(String.valueOf(listed), String.valueOf(listed).contains(id));
+            String url = jdbcUrl.substring(jdbcUrl.indexOf("http://"), jdbcUrl.indexOf(';')) + "/handles";
+            HttpURLConnection http = (HttpURLConnection) new URL(url).openConnection();
+            try (InputStream in = http.getResponseCode() < 400 ? http.getInputStream() : http.getErrorStream()) {
+                String served = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(served, !served.contains(id));
+            } finally {
+                http.disconnect();
+            }
+
+            // The connection was not idle for long, and stays
+            try (Statement statement = connection.createStatement()) {
+                assertTrue(statement.executeQuery("SELECT NAME FROM EMPS").next());
+            }
+        } finally {
+            handles.removeListener(listener);
+            handles.setMaxClientConnections(HandleCache.DEFAULT_MAX_CLIENT_CONNECTIONS);
+            handles.setStatementIdleMillis(HandleCache.DEFAULT_STATEMENT_IDLE_MILLIS);
+        }
+        for (HandleCache.Handle h : handles.getConnections()) {
+            assertNotEquals(id, h.getConnectionId());
+        }
+    }
+
+    private static int cursors(String connectionId) {
+        int cursors = 0;
+        for (AdaptiveFrames.Cursor cursor : server.getFrames().getCursors()) {
+            if (cursor.getKey().startsWith(connectionId + "/")) {
+                cursors++;
+            }
+        }
+        return cursors;
+    }
+
+    @Test
+    public void testAnalyzeTable() throws Exception {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+
+            ResultSet rs = statement.executeQuery("VALUES ANALYZE_TABLE('EMPS')");
+            assertTrue(rs.next());
+            String summary = rs.getString(1);
+            assertTrue(summary, summary.startsWith("5 rows"));
+
+            // The planner sees the analysed row count instead of its default of 100
+            rs = statement.executeQuery("EXPLAIN PLAN INCLUDING ALL ATTRIBUTES FOR SELECT NAME FROM EMPS");
+            assertTrue(rs.next());
+            String plan = rs.getString(1);
+            assertTrue(plan, plan.contains("rowcount = 5.0"));
+
+            // Queries are planned with the statistics
+            rs = statement.executeQuery(
+                "SELECT COUNT(*) FROM EMPS JOIN DEPTS ON EMPS.DEPTNO = DEPTS.DEPTNO WHERE EMPS.AGE > 10");
+            assertTrue(rs.next());
+        }
+    }
+
+    @Test
+    public void testJoinSqlFunction() throws Exception {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl);
+             Statement statement = connection.createStatement()) {
+            
+            // EMPS reaches DEPTS through the DEPTNO key column
+            ResultSet rs = statement.executeQuery("VALUES JOIN_SQL('EMPS, DEPTS')");
+            assertTrue(rs.next());
+            String sql = rs.getString(1);
+            assertTrue(sql, sql.contains("JOIN"));
+            assertTrue(sql, sql.contains("\"DEPTNO\""));
+            
+            // The generated SQL runs as is
+            ResultSet joined = statement.executeQuery(sql);
+            assertTrue(joined.next());
+        }
+    }
 }
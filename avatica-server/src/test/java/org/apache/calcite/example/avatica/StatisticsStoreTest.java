@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to you under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.calcite.example.avatica;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks that {@link StatisticsStore} refreshes the statistics of a file
+ * that has only been appended to from the new lines alone, to the same
+ * effect as analysing it again, and that any other change is analysed in
+ * full.
+ */
+public class StatisticsStoreTest {
+    private Path directory;
+    private File file;
+    private ColumnarCsvCache cache;
+    private StatisticsStore store;
+
+    @Before
+    public void createTable() throws IOException {
+        directory = Files.createTempDirectory("csv-stats");
+        file = directory.resolve("ROWS.csv").toFile();
+        Files.write(file.toPath(), ("ID:int,GROUP:string\n" + rows(0, 8000)).getBytes(StandardCharsets.UTF_8));
+        cache = new ColumnarCsvCache(CachedCsvSchemaFactory.DEFAULT_CACHE_BYTES);
+        cache.setScanner(new MappedCsvScanner(4096, null));
+        store = new StatisticsStore(cache);
+        store.register("ROWS", file);
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testPlannerSeesRowCount() throws Exception {
+        CachedCsvTable table = new CachedCsvTable(file, cache, store);
+        assertEquals(null, table.getStatistic().getRowCount());
+        store.analyze("rows");
+        assertEquals(8000.0, table.getStatistic().getRowCount(), 0);
+        assertTrue(TableStatistics.sidecar(file).exists());
+
+        // Another store finds the statistics in the sidecar
+        StatisticsStore restarted = new StatisticsStore(cache);
+        assertEquals(8000.0, new CachedCsvTable(file, cache, restarted).getStatistic().getRowCount(), 0);
+        assertEquals(0, restarted.getAnalyses());
+    }
+
+    @Test
+    public void testAppendedLinesAnalysedIncrementally() throws Exception {
+        TableStatistics old = store.analyze("ROWS");
+        append(rows(8000, 12000));
+
+        long[] checksums = TableStatistics.checksums(file, old.length, file.length());
+        assertTrue(old.isPrefixOf(file, checksums[0]));
+        TableStatistics refreshed = store.analyze(file);
+        assertEquals(1, store.getAnalyses());
+        assertEquals(1, store.getIncrementalAnalyses());
+        assertEquals(checksums[1], refreshed.checksum);
+
+        // The same as analysing the whole file again, but for the samples drawn
+        TableStatistics full = new StatisticsStore(cache).analyze(copy());
+        assertEquals(12000, refreshed.rowCount);
+        for (int c = 0; c < full.columns.length; c++) {
+            TableStatistics.ColumnStatistics expected = full.columns[c];
+            TableStatistics.ColumnStatistics actual = refreshed.columns[c];
+            assertEquals(expected.nonNull, actual.nonNull);
+            assertEquals(expected.min, actual.min);
+            assertEquals(expected.max, actual.max);
+            // Merged sketches are the sketch of the union
+            assertEquals(expected.distinctCount(), actual.distinctCount());
+            assertEquals(TableStatistics.SAMPLE_SIZE, actual.sample.length);
+        }
+
+        // Two thirds of the IDs were there before the append: the merged
+        // sample draws from both sides in proportion
+        Object[] sample = refreshed.columns[0].sample;
+        int before = 0;
+        for (Object id : sample) {
+            if ((Long) id < 8000) before++;
+        }
+        assertEquals(2.0 / 3, (double) before / sample.length, 0.05);
+    }
+
+    @Test
+    public void testMergedSampleIsSortedAndProportional() {
+        TableStatistics.Collector small = new TableStatistics.Collector(header());
+        TableStatistics.Collector large = new TableStatistics.Collector(header());
+        small.add(table(0, 1000));
+        large.add(table(1000, 10000));
+        TableStatistics.ColumnStatistics a = small.finish(1, 0, 0).columns[0];
+        TableStatistics.ColumnStatistics b = large.finish(1, 0, 0).columns[0];
+        Object[] sample = TableStatistics.mergeSamples(a, b);
+        assertEquals(TableStatistics.SAMPLE_SIZE, sample.length);
+        int fromSmall = 0;
+        for (int i = 0; i < sample.length; i++) {
+            if (i > 0) {
+                assertTrue((Long) sample[i - 1] <= (Long) sample[i]);
+            }
+            if ((Long) sample[i] < 1000) fromSmall++;
+        }
+        assertEquals(0.1, (double) fromSmall / sample.length, 0.03);
+    }
+
+    @Test
+    public void testRewrittenPrefixAnalysedInFull() throws Exception {
+        TableStatistics old = store.analyze("ROWS");
+        // Same length and line breaks, other bytes far from the end
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(old.length / 3);
+            while (out.read() != '\n') {
+                // Find a line start
+            }
+            int digit = out.read();
+            out.seek(out.getFilePointer() - 1);
+            out.write(digit == '9' ? '8' : '9');
+        }
+        append(rows(8000, 8100));
+
+        assertFalse(old.isPrefixOf(file, TableStatistics.checksums(file, old.length, file.length())[0]));
+        TableStatistics refreshed = store.analyze(file);
+        assertEquals(2, store.getAnalyses());
+        assertEquals(0, store.getIncrementalAnalyses());
+        assertEquals(8100, refreshed.rowCount);
+    }
+
+    private static String rows(int from, int to) {
+        StringBuilder csv = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            csv.append(i).append(",g").append(i % 40).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private void append(String csv) throws IOException {
+        long lastModified = file.lastModified();
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertTrue(file.setLastModified(lastModified + 2000));
+    }
+
+    private File copy() throws IOException {
+        Path copy = directory.resolve("COPY.csv");
+        Files.copy(file.toPath(), copy);
+        return copy.toFile();
+    }
+
+    private static ColumnarTable header() {
+        return CsvColumnarReader.build(Collections.singletonList("ID"),
+            Collections.singletonList(new CsvColumnarReader.ColumnBuilder(ColumnarTable.Type.LONG)), 0);
+    }
+
+    private static ColumnarTable table(int from, int to) {
+        CsvColumnarReader.ColumnBuilder builder = new CsvColumnarReader.ColumnBuilder(ColumnarTable.Type.LONG);
+        for (int i = from; i < to; i++) {
+            builder.addLong(i);
+        }
+        return CsvColumnarReader.build(Collections.singletonList("ID"), Collections.singletonList(builder), to - from);
+    }
+}
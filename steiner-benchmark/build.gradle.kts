@@ -0,0 +1,16 @@
+plugins {
+    java
+    id("me.champeau.jmh")
+}
+
+dependencies {
+    jmhImplementation(project(":steiner"))
+    jmhImplementation("org.openjdk.jmh:jmh-core")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess")
+}
+
+jmh {
+    // Allocation rate per operation, so hot-path regressions show up next to the timings
+    profilers.add("gc")
+    jvmArgsAppend.add("-Xmx8g")
+}
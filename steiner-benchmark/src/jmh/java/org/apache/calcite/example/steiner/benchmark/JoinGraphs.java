@@ -0,0 +1,116 @@
+package org.apache.calcite.example.steiner.benchmark;
+
+import org.apache.calcite.example.steiner.SteinerTreeKruskal;
+
+import java.util.*;
+
+/**
+ * Deterministic join-graph generators for the Steiner benchmarks. Every
+ * generator names its nodes {@code T0 .. T(n-1)} so terminals can be picked
+ * the same way for each topology.
+ */
+public class JoinGraphs {
+    public enum Topology {
+        GRID,
+        BARABASI_ALBERT,
+        STAR_SCHEMA,
+        SNOWFLAKE
+    }
+
+    private static final int DIMENSIONS_PER_FACT = 20;
+    private static final int CONFORMED_DIMENSIONS = 10;
+
+    public static SteinerTreeKruskal.Graph build(Topology topology, int nodes, long seed) {
+        Random random = new Random(seed);
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        switch (topology) {
+            case GRID:
+                grid(graph, nodes);
+                break;
+            case BARABASI_ALBERT:
+                barabasiAlbert(graph, nodes, 2, random);
+                break;
+            case STAR_SCHEMA:
+                schema(graph, nodes, false, random);
+                break;
+            case SNOWFLAKE:
+                schema(graph, nodes, true, random);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown topology: " + topology);
+        }
+        return graph;
+    }
+
+    // Picks distinct terminals among the nodes the generator actually created
+    public static Set<String> pickTerminals(SteinerTreeKruskal.Graph graph, int nodes, int count, long seed) {
+        Random random = new Random(seed);
+        Set<String> terminals = new HashSet<>();
+        while (terminals.size() < Math.min(count, nodes / 2)) {
+            String name = name(random.nextInt(nodes));
+            if (graph.getNode(name) != null) {
+                terminals.add(name);
+            }
+        }
+        return terminals;
+    }
+
+    // Row-major grid, the last row possibly partial
+    private static void grid(SteinerTreeKruskal.Graph graph, int nodes) {
+        int width = (int) Math.ceil(Math.sqrt(nodes));
+        for (int i = 0; i < nodes; i++) {
+            if ((i + 1) % width != 0 && i + 1 < nodes) {
+                graph.addEdge(name(i), name(i + 1), "H" + i);
+            }
+            if (i + width < nodes) {
+                graph.addEdge(name(i), name(i + width), "V" + i);
+            }
+        }
+    }
+
+    // Preferential attachment: every new node joins m existing nodes picked in
+    // proportion to their degree
+    private static void barabasiAlbert(SteinerTreeKruskal.Graph graph, int nodes, int m, Random random) {
+        int[] endpoints = new int[2 * m * nodes];
+        int size = 0;
+        for (int i = 1; i <= m && i < nodes; i++) {
+            graph.addEdge(name(i), name(0), "B" + i + "_0");
+            endpoints[size++] = i;
+            endpoints[size++] = 0;
+        }
+        for (int i = m + 1; i < nodes; i++) {
+            Set<Integer> picked = new HashSet<>();
+            while (picked.size() < m) {
+                picked.add(endpoints[random.nextInt(size)]);
+            }
+            for (int target : picked) {
+                graph.addEdge(name(i), name(target), "B" + i + "_" + target);
+                endpoints[size++] = i;
+                endpoints[size++] = target;
+            }
+        }
+    }
+
+    // Fact tables every DIMENSIONS_PER_FACT nodes, each owning the dimensions that
+    // follow it. Consecutive facts share conformed dimensions, which keeps the
+    // schema connected. In a snowflake a dimension hangs off a random earlier
+    // table of its own star instead of the fact itself.
+    private static void schema(SteinerTreeKruskal.Graph graph, int nodes, boolean snowflake, Random random) {
+        int conformed = Math.min(CONFORMED_DIMENSIONS, nodes);
+        int facts = 0;
+        for (int start = conformed; start < nodes; start += DIMENSIONS_PER_FACT) {
+            int fact = start;
+            graph.addEdge(name(fact), name(facts % conformed), "C" + fact + "_a");
+            graph.addEdge(name(fact), name((facts + 1) % conformed), "C" + fact + "_b");
+            for (int dim = fact + 1; dim < Math.min(nodes, start + DIMENSIONS_PER_FACT); dim++) {
+                int parent = snowflake ? fact + random.nextInt(dim - fact) : fact;
+                graph.addEdge(name(parent), name(dim), "D" + dim);
+            }
+            facts++;
+        }
+    }
+
+    static String name(int id) {
+        return "T" + id;
+    }
+}
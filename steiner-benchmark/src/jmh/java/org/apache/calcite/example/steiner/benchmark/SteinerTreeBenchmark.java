@@ -0,0 +1,86 @@
+package org.apache.calcite.example.steiner.benchmark;
+
+import org.apache.calcite.example.steiner.SteinerTreeKruskal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the Steiner join-path search across graph sizes, topologies and
+ * terminal counts. The tree cache is disabled so every invocation measures a
+ * full search; run with {@code -prof gc} (the Gradle task does) to track
+ * allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SteinerTreeBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int nodes;
+
+    @Param({"GRID", "BARABASI_ALBERT", "STAR_SCHEMA", "SNOWFLAKE"})
+    JoinGraphs.Topology topology;
+
+    @Param({"5", "20", "50"})
+    int terminals;
+
+    // 0 runs without the landmark index
+    @Param({"0", "8"})
+    int landmarks;
+
+    private SteinerTreeKruskal.Graph graph;
+    private Set<String> terminalNames;
+    private Set<SteinerTreeKruskal.Node> terminalNodes;
+    private Set<SteinerTreeKruskal.Node> unprunedTree;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        graph = JoinGraphs.build(topology, nodes, 42);
+        graph.getCache().setCapacity(0);
+        if (landmarks > 0) {
+            graph.buildLandmarkIndex(landmarks, 1L << 30);
+        }
+        terminalNames = JoinGraphs.pickTerminals(graph, nodes, terminals, 7);
+        terminalNodes = new HashSet<>();
+        for (String name : terminalNames) {
+            terminalNodes.add(graph.getNode(name));
+        }
+        unprunedTree = graph.findPathNodes(terminalNames);
+    }
+
+    @Benchmark
+    public Set<SteinerTreeKruskal.Node> findSteinerTree() {
+        return graph.findSteinerTree(terminalNames);
+    }
+
+    @Benchmark
+    public Set<SteinerTreeKruskal.Edge> getSteinerTreeEdges() {
+        return graph.getSteinerTreeEdges(terminalNames);
+    }
+
+    @Benchmark
+    public List<SteinerTreeKruskal.Island> islands() {
+        return graph.islands();
+    }
+
+    @Benchmark
+    public Set<SteinerTreeKruskal.Node> pruneNonTerminals() {
+        return graph.pruneNonTerminals(unprunedTree, terminalNodes);
+    }
+}
@@ -0,0 +1,14 @@
+plugins {
+    id("java-library")
+}
+
+dependencies {
+    testImplementation("junit:junit")
+}
+
+tasks.test {
+    useJUnit()
+    testLogging {
+        events("passed", "skipped", "failed")
+    }
+}
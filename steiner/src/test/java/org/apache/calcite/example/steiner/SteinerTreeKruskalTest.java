@@ -0,0 +1,635 @@
+package org.apache.calcite.example.steiner;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests for the Steiner join-path engine, checked against plain searches where
+ * an optimisation could change the answer.
+ */
+public class SteinerTreeKruskalTest {
+    @Test
+    public void testLandmarkBoundsAdmissibleForLargeWeights() {
+        // Hops of about 1e9 next to hops of a few units: the landmark rows hold
+        // distances where a float would round away the short hops
+        Random random = new Random(11);
+        SteinerTreeKruskal.Graph indexed = new SteinerTreeKruskal.Graph();
+        SteinerTreeKruskal.Graph plain = new SteinerTreeKruskal.Graph();
+        int nodes = 400;
+        for (int i = 1; i < nodes; i++) {
+            for (int e = 0; e < 3; e++) {
+                int j = random.nextInt(i);
+                double weight = random.nextInt(4) == 0 ? 1 + random.nextInt(20) : 1_000_000_000L + random.nextInt(1000);
+                indexed.addEdge("N" + i, "N" + j, "E" + i + "_" + e, weight);
+                plain.addEdge("N" + i, "N" + j, "E" + i + "_" + e, weight);
+            }
+        }
+        indexed.buildLandmarkIndex(8, 1L << 24);
+
+        for (int q = 0; q < 500; q++) {
+            String from = "N" + random.nextInt(nodes);
+            String to = "N" + random.nextInt(nodes);
+            // Integral weights sum exactly, so A* must match Dijkstra to the unit
+            assertEquals(from + " -> " + to, plain.distance(from, to), indexed.distance(from, to), 0);
+        }
+    }
+
+    @Test
+    public void testBatchReportsIslandFailuresAndCachesByAlgorithm() {
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        graph.addEdge("A", "B", "AB");
+        graph.addEdge("B", "C", "BC");
+        graph.addEdge("X", "Y", "XY");
+        ForkJoinPool pool = new ForkJoinPool(2);
+        graph.setPool(pool);
+        try {
+            List<Set<String>> sets = Arrays.asList(
+                new HashSet<>(Arrays.asList("A", "C")),
+                new HashSet<>(Arrays.asList("A", "X")),
+                new HashSet<>(Arrays.asList("X", "Y")));
+
+            SteinerTreeKruskal.SteinerResult[] results = new SteinerTreeKruskal.SteinerResult[sets.size()];
+            RuntimeException[] failures = new RuntimeException[sets.size()];
+            int[] progress = new int[1];
+            graph.findSteinerTrees(sets, 1L << 20, new SteinerTreeKruskal.BatchListener() {
+                @Override
+                public void onResult(int index, SteinerTreeKruskal.SteinerResult result) {
+                    results[index] = result;
+                }
+
+                @Override
+                public void onFailure(int index, RuntimeException failure) {
+                    failures[index] = failure;
+                }
+
+                @Override
+                public synchronized void onProgress(int done, int total) {
+                    progress[0] = Math.max(progress[0], done);
+                }
+            });
+
+            // The set spanning two islands fails alone; the others are still solved
+            assertEquals(3, results[0].getNodes().size());
+            assertNull(results[1]);
+            assertTrue(failures[1] instanceof IllegalArgumentException);
+            assertEquals(2, results[2].getNodes().size());
+            assertEquals(3, progress[0]);
+
+            // The batch's trees do not answer the single-tree search for the same set
+            int cached = graph.getCache().size();
+            assertEquals(3, graph.findSteinerTree(sets.get(0)).size());
+            assertEquals(cached + 1, graph.getCache().size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTripKeepsEdgeWeights() throws IOException {
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        graph.addEdge("A", "B", "AB", 1);
+        graph.addEdge("B", "C", "BC", 5);
+        graph.addEdge("C", "D", "CD", 7);
+        graph.addEdge("A", "D", "AD", 2);
+        graph.addEdge("B", "D", "BD", 3);
+        Path file = Files.createTempFile("steiner", ".graph");
+        try {
+            SteinerTreeKruskal.GraphSnapshot.write(graph, file);
+            SteinerTreeKruskal.Graph loaded = SteinerTreeKruskal.GraphSnapshot.open(file).toGraph();
+            for (String[] edge : new String[][] {{"A", "B"}, {"B", "C"}, {"C", "D"}, {"A", "D"}, {"B", "D"}}) {
+                SteinerTreeKruskal.Edge expected = graph.getNode(edge[0]).getEdgeTo(graph.getNode(edge[1]));
+                SteinerTreeKruskal.Edge actual = loaded.getNode(edge[0]).getEdgeTo(loaded.getNode(edge[1]));
+                assertEquals(expected.getName(), actual.getName());
+                assertEquals(expected.getName(), expected.getWeight(), actual.getWeight(), 0);
+            }
+            Set<String> terminals = new HashSet<>(Arrays.asList("A", "C", "D"));
+            assertEquals(graph.findSteinerResult(terminals).getCost(), loaded.findSteinerResult(terminals).getCost(), 0);
+            assertEquals(graph.findSteinerTree(terminals), loaded.findSteinerTree(terminals));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSnapshotQueriesCheckedLikeGraph() throws IOException {
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        // A weighted square with a diagonal, so the tree's nodes hold a cycle,
+        // and a second island
+        graph.addEdge("A", "B", "AB", 1);
+        graph.addEdge("B", "C", "BC", 1);
+        graph.addEdge("C", "D", "CD", 1);
+        graph.addEdge("D", "A", "DA", 1);
+        graph.addEdge("A", "C", "AC", 3);
+        graph.addEdge("X", "Y", "XY", 2);
+        Path file = Files.createTempFile("steiner", ".graph");
+        try {
+            SteinerTreeKruskal.GraphSnapshot.write(graph, file);
+            SteinerTreeKruskal.GraphSnapshot snapshot = SteinerTreeKruskal.GraphSnapshot.open(file);
+
+            Set<String> terminals = new HashSet<>(Arrays.asList("A", "B", "C", "D"));
+            SteinerTreeKruskal.SteinerResult expected = graph.findSteinerResult(terminals);
+            SteinerTreeKruskal.SteinerResult actual = snapshot.findSteinerResult(terminals);
+            assertEquals(expected.getCost(), actual.getCost(), 0);
+            assertEquals(names(expected.getEdges()), snapshot.getSteinerTreeEdges(terminals));
+            // Only the spanning tree's edges, not every edge between its nodes
+            assertEquals(3, snapshot.getSteinerTreeEdges(terminals).size());
+
+            Set<String> split = new HashSet<>(Arrays.asList("A", "X"));
+            for (Runnable query : Arrays.<Runnable>asList(() -> graph.findSteinerTree(split),
+                    () -> snapshot.findSteinerTree(split), () -> snapshot.getSteinerTreeEdges(split))) {
+                try {
+                    query.run();
+                    fail("Terminals on two islands");
+                } catch (RuntimeException e) {
+                    assertEquals("Final Steiner tree is not connected!", e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testCacheInvalidatedByEveryChange() {
+        // The same changes go to a caching graph and to one that caches nothing;
+        // a tree the first kept across a change would differ from the second's
+        Random random = new Random(11);
+        SteinerTreeKruskal.Graph cached = new SteinerTreeKruskal.Graph();
+        SteinerTreeKruskal.Graph uncached = new SteinerTreeKruskal.Graph();
+        uncached.getCache().setCapacity(0);
+        int nodes = 30;
+        for (int i = 1; i < nodes; i++) {
+            String to = "N" + random.nextInt(i);
+            cached.addEdge("N" + i, to, "E" + i);
+            uncached.addEdge("N" + i, to, "E" + i);
+        }
+        List<Set<String>> queries = new ArrayList<>();
+        for (int q = 0; q < 5; q++) {
+            queries.add(new HashSet<>(Arrays.asList("N" + random.nextInt(nodes), "N" + random.nextInt(nodes),
+                "N" + random.nextInt(nodes))));
+        }
+
+        for (int step = 0; step < 200; step++) {
+            for (Set<String> terminals : queries) {
+                assertEquals("step " + step, solve(uncached, terminals), solve(cached, terminals));
+                // Asked twice, the second answer comes from the cache
+                solve(cached, terminals);
+            }
+            long invalidations = cached.getCache().getInvalidations();
+            String a = "N" + random.nextInt(nodes);
+            String b = "N" + random.nextInt(nodes);
+            switch (random.nextInt(4)) {
+                case 0:
+                    double weight = 1 + random.nextInt(3);
+                    if (!a.equals(b)) {
+                        cached.addEdge(a, b, "X" + step, weight);
+                        uncached.addEdge(a, b, "X" + step, weight);
+                    }
+                    break;
+                case 1:
+                    assertEquals(uncached.removeEdge(a, b), cached.removeEdge(a, b));
+                    break;
+                case 2:
+                    assertEquals(uncached.removeNode(a), cached.removeNode(a));
+                    break;
+                default:
+                    cached.addNode(a);
+                    uncached.addNode(a);
+                    break;
+            }
+            if (cached.getCache().getInvalidations() > invalidations) {
+                assertEquals(0, cached.getCache().size());
+            }
+        }
+        assertTrue(cached.getCache().getHits() > 0);
+        assertTrue(cached.getCache().getInvalidations() > 0);
+    }
+
+    @Test
+    public void testParallelTreesMatchSerial() {
+        Random random = new Random(11);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int round = 0; round < 12; round++) {
+                // Unit and integral weights, with and without landmark bounds
+                boolean weighted = round % 2 == 1;
+                SteinerTreeKruskal.Graph serial = new SteinerTreeKruskal.Graph();
+                SteinerTreeKruskal.Graph parallel = new SteinerTreeKruskal.Graph();
+                parallel.setPool(pool);
+                int nodes = 2000;
+                for (int i = 1; i < nodes; i++) {
+                    for (int e = 0; e < 2; e++) {
+                        String to = "N" + random.nextInt(i);
+                        double weight = weighted ? 1 + random.nextInt(9) : 1;
+                        serial.addEdge("N" + i, to, "E" + i + "_" + e, weight);
+                        parallel.addEdge("N" + i, to, "E" + i + "_" + e, weight);
+                    }
+                }
+                if (round % 4 >= 2) {
+                    serial.buildLandmarkIndex(4, 1L << 20);
+                    parallel.buildLandmarkIndex(4, 1L << 20);
+                }
+                for (int q = 0; q < 10; q++) {
+                    // Up to 30 terminals, past the landmark-guided search's limit
+                    Set<String> terminals = new HashSet<>();
+                    int count = 2 + random.nextInt(29);
+                    while (terminals.size() < count) {
+                        terminals.add("N" + random.nextInt(nodes));
+                    }
+                    assertEquals("round " + round, solve(serial, terminals), solve(parallel, terminals));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testExactTreeMatchesBruteForce() {
+        Random random = new Random(11);
+        for (int round = 0; round < 40; round++) {
+            int nodes = 6 + random.nextInt(7);
+            SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+            for (int i = 1; i < nodes; i++) {
+                graph.addEdge("N" + i, "N" + random.nextInt(i), "T" + i, 1 + random.nextInt(9));
+            }
+            for (int e = 0; e < nodes; e++) {
+                int i = random.nextInt(nodes);
+                int j = random.nextInt(nodes);
+                if (i != j) {
+                    graph.addEdge("N" + i, "N" + j, "X" + e, 1 + random.nextInt(9));
+                }
+            }
+            Set<String> terminals = new HashSet<>();
+            int count = 2 + random.nextInt(4);
+            while (terminals.size() < count) {
+                terminals.add("N" + random.nextInt(nodes));
+            }
+
+            // Cheapest spanning tree over the terminals and every subset of the others
+            List<SteinerTreeKruskal.Node> others = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                if (!terminals.contains("N" + i)) {
+                    others.add(graph.getNode("N" + i));
+                }
+            }
+            double best = Double.POSITIVE_INFINITY;
+            for (int mask = 0; mask < 1 << others.size(); mask++) {
+                Set<SteinerTreeKruskal.Node> tree = new HashSet<>();
+                for (String terminal : terminals) {
+                    tree.add(graph.getNode(terminal));
+                }
+                for (int i = 0; i < others.size(); i++) {
+                    if ((mask & 1 << i) != 0) {
+                        tree.add(others.get(i));
+                    }
+                }
+                if (isConnected(tree)) {
+                    best = Math.min(best, graph.treeCost(tree));
+                }
+            }
+
+            SteinerTreeKruskal.SteinerSolution solution = graph.findOptimalSteinerTree(terminals);
+            assertEquals(SteinerTreeKruskal.SolverMode.EXACT, solution.getMode());
+            assertEquals("round " + round, best, solution.getCost(), 1e-9);
+            assertEquals(best, graph.treeCost(solution.getNodes()), 1e-9);
+            assertTrue(isConnected(solution.getNodes()));
+            assertEquals(graph.findSteinerResult(terminals).getCost(), solution.getHeuristicCost(), 0);
+            assertTrue(solution.getCostGap() >= 0);
+        }
+    }
+
+    @Test
+    public void testIslandsMatchSearchAfterChanges() {
+        Random random = new Random(11);
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        int nodes = 40;
+        for (int step = 0; step < 1000; step++) {
+            String a = "N" + random.nextInt(nodes);
+            String b = "N" + random.nextInt(nodes);
+            int change = random.nextInt(10);
+            if (change < 5) {
+                if (!a.equals(b)) {
+                    graph.addEdge(a, b, "E" + step);
+                }
+            } else if (change < 8) {
+                graph.removeEdge(a, b);
+            } else if (change < 9) {
+                graph.removeNode(a);
+            } else {
+                graph.addNode(a);
+            }
+
+            // Components by a plain search over the current nodes
+            Set<Set<SteinerTreeKruskal.Node>> expected = new HashSet<>();
+            Set<SteinerTreeKruskal.Node> seen = new HashSet<>();
+            for (int i = 0; i < nodes; i++) {
+                SteinerTreeKruskal.Node start = graph.getNode("N" + i);
+                if (start != null && !seen.contains(start)) {
+                    Set<SteinerTreeKruskal.Node> component = reachable(start);
+                    seen.addAll(component);
+                    expected.add(component);
+                }
+            }
+            Set<Set<SteinerTreeKruskal.Node>> actual = new HashSet<>();
+            for (SteinerTreeKruskal.Island island : graph.islands()) {
+                actual.add(new HashSet<>(island.getNodes()));
+                assertEquals(island.getNodes().size(), island.size());
+            }
+            assertEquals("step " + step, expected, actual);
+            assertEquals(expected.size(), graph.islandCount());
+            for (int q = 0; q < 5; q++) {
+                SteinerTreeKruskal.Node x = graph.getNode("N" + random.nextInt(nodes));
+                SteinerTreeKruskal.Node y = graph.getNode("N" + random.nextInt(nodes));
+                boolean joined = x != null && y != null && reachable(x).contains(y);
+                assertEquals(joined, x != null && y != null && graph.sameIsland(x.getContent(), y.getContent()));
+            }
+        }
+    }
+
+    private static Set<SteinerTreeKruskal.Node> reachable(SteinerTreeKruskal.Node start) {
+        Set<SteinerTreeKruskal.Node> visited = new HashSet<>(Collections.singleton(start));
+        Deque<SteinerTreeKruskal.Node> queue = new ArrayDeque<>(visited);
+        while (!queue.isEmpty()) {
+            for (SteinerTreeKruskal.Node neighbor : queue.poll().getNeighbors()) {
+                if (visited.add(neighbor)) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return visited;
+    }
+
+    @Test
+    public void testResultEdgesCostAndAdjacencyAgree() {
+        Random random = new Random(11);
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        SteinerTreeKruskal.Graph unchecked = new SteinerTreeKruskal.Graph();
+        unchecked.setVerifyTrees(false);
+        int nodes = 300;
+        for (int i = 1; i < nodes; i++) {
+            for (int e = 0; e < 2; e++) {
+                String to = "N" + random.nextInt(i);
+                double weight = 1 + random.nextInt(9);
+                graph.addEdge("N" + i, to, "E" + i + "_" + e, weight);
+                unchecked.addEdge("N" + i, to, "E" + i + "_" + e, weight);
+            }
+        }
+        for (int q = 0; q < 50; q++) {
+            Set<String> terminals = new HashSet<>();
+            int count = 2 + random.nextInt(8);
+            while (terminals.size() < count) {
+                terminals.add("N" + random.nextInt(nodes));
+            }
+            SteinerTreeKruskal.SteinerResult result = graph.findSteinerResult(terminals);
+            Set<SteinerTreeKruskal.Node> nodeSet = result.getNodes();
+            for (String terminal : terminals) {
+                assertTrue(nodeSet.contains(graph.getNode(terminal)));
+            }
+
+            // A spanning tree of the nodes whose weights add up to the cost
+            assertEquals(nodeSet.size() - 1, result.getEdges().size());
+            double cost = 0;
+            Map<SteinerTreeKruskal.Node, Set<SteinerTreeKruskal.Node>> expected = new HashMap<>();
+            for (SteinerTreeKruskal.Edge edge : result.getEdges()) {
+                assertTrue(nodeSet.contains(edge.getStart()));
+                assertTrue(nodeSet.contains(edge.getEnd()));
+                cost += edge.getWeight();
+                expected.computeIfAbsent(edge.getStart(), n -> new HashSet<>()).add(edge.getEnd());
+                expected.computeIfAbsent(edge.getEnd(), n -> new HashSet<>()).add(edge.getStart());
+            }
+            assertEquals(cost, result.getCost(), 1e-9);
+            for (SteinerTreeKruskal.Node node : nodeSet) {
+                List<SteinerTreeKruskal.Node> neighbors = result.getNeighbors(node);
+                assertEquals(expected.getOrDefault(node, Collections.emptySet()), new HashSet<>(neighbors));
+                assertEquals(neighbors.size(), new HashSet<>(neighbors).size());
+            }
+            assertTrue(reachableAlong(result, nodeSet.iterator().next()).containsAll(nodeSet));
+
+            // Switching the checks off changes no tree
+            assertEquals(solve(graph, terminals), solve(unchecked, terminals));
+        }
+
+        // The spanning check stays on: it is what finds terminals on two islands
+        unchecked.addEdge("X", "Y", "XY");
+        try {
+            unchecked.findSteinerResult(new HashSet<>(Arrays.asList("N0", "X")));
+            fail("Terminals on two islands");
+        } catch (RuntimeException e) {
+            assertEquals("Final Steiner tree is not connected!", e.getMessage());
+        }
+    }
+
+    private static Set<SteinerTreeKruskal.Node> reachableAlong(SteinerTreeKruskal.SteinerResult result,
+                                                               SteinerTreeKruskal.Node start) {
+        Set<SteinerTreeKruskal.Node> visited = new HashSet<>(Collections.singleton(start));
+        Deque<SteinerTreeKruskal.Node> queue = new ArrayDeque<>(visited);
+        while (!queue.isEmpty()) {
+            for (SteinerTreeKruskal.Node neighbor : result.getNeighbors(queue.poll())) {
+                if (visited.add(neighbor)) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return visited;
+    }
+
+    @Test
+    public void testAlternativeTreesOrderedDistinctAndWithinSlack() {
+        Random random = new Random(11);
+        int alternatives = 0;
+        for (int round = 0; round < 20; round++) {
+            int nodes = 20 + random.nextInt(40);
+            SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+            for (int i = 1; i < nodes; i++) {
+                for (int e = 0; e < 2; e++) {
+                    graph.addEdge("N" + i, "N" + random.nextInt(i), "E" + i + "_" + e, 1 + random.nextInt(4));
+                }
+            }
+            Set<String> terminals = new HashSet<>();
+            int count = 2 + random.nextInt(4);
+            while (terminals.size() < count) {
+                terminals.add("N" + random.nextInt(nodes));
+            }
+            double slack = round % 2 == 0 ? 0.5 : 0;
+            // With k = 1 only the first branch's tree is solved, the one the slack is relative to
+            double first = graph.findAlternativeSteinerTrees(terminals, 1, slack, 10_000).get(0).getCost();
+            List<SteinerTreeKruskal.SteinerResult> trees = graph.findAlternativeSteinerTrees(terminals, 8, slack, 10_000);
+            assertTrue(trees.size() >= 1 && trees.size() <= 8);
+
+            Set<String> keys = new HashSet<>();
+            String previous = null;
+            double previousCost = 0;
+            for (SteinerTreeKruskal.SteinerResult tree : trees) {
+                for (String terminal : terminals) {
+                    assertTrue(tree.getNodes().contains(graph.getNode(terminal)));
+                }
+                assertEquals(tree.getNodes().size() - 1, tree.getEdges().size());
+                assertTrue(tree.getCost() <= first * (1 + slack) + 1e-9);
+                String key = String.join("\n", new TreeSet<>(names(tree.getEdges())));
+                assertTrue("Trees must be distinct", keys.add(key));
+                // Cheapest first, ties by their sorted edge names
+                if (previous != null) {
+                    assertTrue(previousCost < tree.getCost()
+                        || previousCost == tree.getCost() && previous.compareTo(key) < 0);
+                }
+                previous = key;
+                previousCost = tree.getCost();
+            }
+            alternatives += trees.size() - 1;
+        }
+        assertTrue(alternatives > 0);
+    }
+
+    // The tree's cost and sorted edge names, or the failure
+    private static String solve(SteinerTreeKruskal.Graph graph, Set<String> terminals) {
+        try {
+            SteinerTreeKruskal.SteinerResult result = graph.findSteinerResult(terminals);
+            return result.getCost() + " " + new TreeSet<>(names(result.getEdges()));
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Test
+    public void testMehlhornTreeNoLargerThanClosureTree() {
+        // N4 is next to every terminal; Mehlhorn's paths alone left a five-node
+        // tree here, where the metric closure tree joins all three through N4
+        SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+        int[][] edges = {{1, 0}, {2, 0}, {3, 2}, {4, 3}, {5, 4}, {6, 4}, {7, 5}, {7, 3}, {4, 5}, {2, 4}, {2, 5}, {4, 1}};
+        for (int[] edge : edges) {
+            graph.addEdge("N" + edge[0], "N" + edge[1], "E" + edge[0] + "_" + edge[1]);
+        }
+        Set<String> terminals = new HashSet<>(Arrays.asList("N1", "N3", "N5"));
+        SteinerTreeKruskal.SteinerResult result = graph.findSteinerResult(terminals);
+        assertEquals(4, result.getNodes().size());
+        assertEquals(3, result.getCost(), 0);
+        assertTrue(result.getNodes().contains(graph.getNode("N4")));
+    }
+
+    @Test
+    public void testPruneMatchesBaselinePruner() {
+        Random random = new Random(11);
+        for (int round = 0; round < 300; round++) {
+            // Every other graph is a tree, so that any order of removals ends
+            // in the same node set
+            int nodes = 5 + random.nextInt(40);
+            int extraEdges = round % 2 == 0 ? 0 : random.nextInt(nodes);
+            SteinerTreeKruskal.Graph graph = new SteinerTreeKruskal.Graph();
+            for (int i = 1; i < nodes; i++) {
+                graph.addEdge("N" + i, "N" + random.nextInt(i), "T" + i);
+            }
+            for (int e = 0; e < extraEdges; e++) {
+                int i = random.nextInt(nodes);
+                int j = random.nextInt(nodes);
+                if (i != j) {
+                    graph.addEdge("N" + i, "N" + j, "X" + e);
+                }
+            }
+            Set<String> terminalNames = new HashSet<>();
+            int count = 2 + random.nextInt(4);
+            while (terminalNames.size() < count) {
+                terminalNames.add("N" + random.nextInt(nodes));
+            }
+            Set<SteinerTreeKruskal.Node> terminals = new HashSet<>();
+            for (String name : terminalNames) {
+                terminals.add(graph.getNode(name));
+            }
+
+            Set<SteinerTreeKruskal.Node> input = new HashSet<>();
+            if (round % 4 < 2) {
+                input.addAll(graph.findPathNodes(terminalNames));
+            } else {
+                for (int i = 0; i < nodes; i++) {
+                    input.add(graph.getNode("N" + i));
+                }
+            }
+            Set<SteinerTreeKruskal.Node> pruned = graph.pruneNonTerminals(input, terminals);
+            Set<SteinerTreeKruskal.Node> expected = basePrune(input, terminals);
+            if (extraEdges == 0) {
+                assertEquals("round " + round, expected, pruned);
+            } else {
+                // On cycles the baseline's pick depends on hash order; both must
+                // still be connected trees the baseline rule cannot shrink
+                assertTrue(pruned.containsAll(terminals));
+                assertTrue(isConnected(pruned));
+                assertEquals("round " + round, pruned, basePrune(pruned, terminals));
+            }
+        }
+    }
+
+    // The pruner before the CSR rewrite: repeatedly drop any non-terminal with
+    // at most two neighbours in the tree whose removal keeps it connected
+    private static Set<SteinerTreeKruskal.Node> basePrune(Set<SteinerTreeKruskal.Node> nodes,
+                                                         Set<SteinerTreeKruskal.Node> terminals) {
+        Set<SteinerTreeKruskal.Node> result = new HashSet<>(nodes);
+        boolean anyRemoved = true;
+        while (anyRemoved) {
+            anyRemoved = false;
+            List<SteinerTreeKruskal.Node> removable = new ArrayList<>();
+            for (SteinerTreeKruskal.Node node : result) {
+                int inTree = 0;
+                for (SteinerTreeKruskal.Node neighbor : node.getNeighbors()) {
+                    if (result.contains(neighbor)) inTree++;
+                }
+                if (!terminals.contains(node) && inTree <= 2) {
+                    removable.add(node);
+                }
+            }
+            for (SteinerTreeKruskal.Node node : removable) {
+                result.remove(node);
+                if (isConnected(result)) {
+                    anyRemoved = true;
+                } else {
+                    result.add(node);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isConnected(Set<SteinerTreeKruskal.Node> nodes) {
+        if (nodes.isEmpty()) {
+            return true;
+        }
+        SteinerTreeKruskal.Node start = nodes.iterator().next();
+        Set<SteinerTreeKruskal.Node> visited = new HashSet<>(Collections.singleton(start));
+        Deque<SteinerTreeKruskal.Node> queue = new ArrayDeque<>(visited);
+        while (!queue.isEmpty()) {
+            for (SteinerTreeKruskal.Node neighbor : queue.poll().getNeighbors()) {
+                if (nodes.contains(neighbor) && visited.add(neighbor)) {
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return visited.size() == nodes.size();
+    }
+
+    private static Set<String> names(Set<SteinerTreeKruskal.Edge> edges) {
+        Set<String> names = new HashSet<>();
+        for (SteinerTreeKruskal.Edge edge : edges) {
+            names.add(edge.getName());
+        }
+        return names;
+    }
+}